@@ -0,0 +1,424 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.steps.BodyExecution;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.EnvironmentExpander;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Pipeline counterpart of {@link PortAllocator}: {@code allocatePorts([plainPort('HTTP')]) { ... }}
+ * allocates the ports on the current node, exposes them as environment variables to the block,
+ * and cleans them up when the block ends.
+ *
+ * <p>
+ * While a port is busy, the step waits in line like a build would, but without holding a thread.
+ */
+public class AllocatePortsStep extends Step {
+    private final List<PortType> ports;
+
+    @DataBoundConstructor
+    public AllocatePortsStep(List<PortType> ports) {
+        this.ports = ports;
+    }
+
+    public List<PortType> getPorts() {
+        return ports;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(context, ports.toArray(new PortType[ports.size()]));
+    }
+
+    /**
+     * Waits for fixed and pooled ports one at a time, in a fixed order so that two builds
+     * asking for the same ports cannot deadlock, then allocates the random ones in a batch.
+     */
+    static final class Execution extends StepExecution {
+        private final PortType[] types;
+
+        /**
+         * Ports allocated so far, in the same order as {@link #types}; null for those not allocated yet.
+         * Pooled types may get several ports. Guarded by this object.
+         */
+        private final int[][] allocated;
+
+        private BodyExecution body;
+
+        private transient PortAllocationManager manager;
+
+        /**
+         * Request being waited for, if any. Guarded by this object.
+         */
+        private transient CompletableFuture<?> pending;
+
+        private transient boolean stopped;
+
+        Execution(StepContext context, PortType[] types) {
+            super(context);
+            this.types = types;
+            this.allocated = new int[types.length][];
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            for (PortType type : types) {
+                if (!type.isBatchAllocatable() && !(type instanceof PooledPortType)) {
+                    throw new AbortException("Port type " + type.getDescriptor().getDisplayName()
+                            + " is not supported by allocatePorts");
+                }
+            }
+            manager = PortAllocationManager.getManager(getContext().get(Computer.class));
+
+            // fixed ports first, by number, then pooled ports by pool name
+            final List<Integer> order = new ArrayList<Integer>();
+            for (int i = 0; i < types.length; i++) {
+                if (types[i].isFixedPort() || types[i] instanceof PooledPortType) {
+                    order.add(i);
+                }
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    PortType x = types[a], y = types[b];
+                    if (x.isFixedPort() != y.isFixedPort()) {
+                        return x.isFixedPort() ? -1 : 1;
+                    }
+                    return x.isFixedPort() ? Integer.compare(x.getFixedPort(), y.getFixedPort()) : x.name.compareTo(y.name);
+                }
+            });
+            acquire(order, 0);
+            return false;
+        }
+
+        /**
+         * Requests the ports of {@code types[order.get(next)]}, and goes on with the next one once granted.
+         */
+        private void acquire(final List<Integer> order, final int next) {
+            if (next == order.size()) {
+                // talks to the node, so not on the few threads of the Timer that all of Jenkins shares
+                Computer.threadPoolForRemoting.submit(new Runnable() {
+                    public void run() {
+                        allocateRandomAndStart();
+                    }
+                });
+                return;
+            }
+            final int i = order.get(next);
+            final CompletableFuture<?> request;
+            try {
+                Run<?,?> run = getContext().get(Run.class);
+                if (types[i] instanceof PooledPortType) {
+                    PooledPortType type = (PooledPortType) types[i];
+                    request = manager.allocateFromPoolAsync(run, PortAllocator.DESCRIPTOR.getPoolByName(type.name),
+                            type.getCount(), type.isConsecutive());
+                } else {
+                    request = manager.allocateAsync(run, types[i].getFixedPort());
+                }
+                if (!request.isDone()) {
+                    String owner = types[i].isFixedPort() ? manager.getOwner(types[i].getFixedPort()) : null;
+                    getContext().get(TaskListener.class).getLogger().println("Waiting for TCP port " + types[i].name
+                            + (owner != null ? ", in use by " + owner : ""));
+                }
+            } catch (PoolNotDefinedException e) {
+                fail(new AbortException("Undefined pool: " + types[i].name));
+                return;
+            } catch (IllegalArgumentException e) {
+                fail(new AbortException(e.getMessage()));
+                return;
+            } catch (Exception e) {
+                fail(e);
+                return;
+            }
+            synchronized (this) {
+                if (stopped) {
+                    manager.cancel(request);
+                    return;
+                }
+                pending = request;
+            }
+            // the request completes while the manager is locked, so carry on elsewhere
+            request.whenCompleteAsync(new BiConsumer<Object,Throwable>() {
+                public void accept(Object granted, Throwable cancelled) {
+                    synchronized (Execution.this) {
+                        if (pending != request) {
+                            return; // withdrawn by stop(), which also took care of the ports
+                        }
+                        pending = null;
+                        allocated[i] = granted instanceof int[] ? (int[]) granted : new int[] {(Integer) granted};
+                    }
+                    acquire(order, next + 1);
+                }
+            }, Timer.get());
+        }
+
+        private void allocateRandomAndStart() {
+            try {
+                StepContext context = getContext();
+                Run<?,?> run = context.get(Run.class);
+                Launcher launcher = context.get(Launcher.class);
+                TaskListener listener = context.get(TaskListener.class);
+
+                Map<String,Integer> prefPorts = PreferredPortIndex.get().lookup(run.getParent().getFullName(), manager.getNodeName());
+                // the ports not allocated yet are random ones; get them all in one go
+                int[] slots = new int[types.length];
+                int[] pref = new int[types.length];
+                int n = 0;
+                for (int i = 0; i < types.length; i++) {
+                    if (allocated[i] == null) {
+                        Integer p = prefPorts == null ? null : prefPorts.get(types[i].name);
+                        pref[n] = p == null ? 0 : p;
+                        slots[n++] = i;
+                    }
+                }
+                int[] random = n == 0 ? new int[0]
+                        : manager.allocateAll(run, new int[n], Arrays.copyOf(pref, n));
+
+                Map<String,String> env = new HashMap<String,String>();
+                synchronized (this) {
+                    for (int k = 0; k < random.length; k++) {
+                        allocated[slots[k]] = new int[] {random[k]};
+                    }
+                    if (stopped) {
+                        freeAll();
+                        return;
+                    }
+                }
+                List<Integer> numbers = new ArrayList<Integer>();
+                for (int i = 0; i < types.length; i++) {
+                    Map<String,String> vars = new TreeMap<String,String>();
+                    PooledPort.buildEnvVars(types[i].name, allocated[i], vars);
+                    for (Map.Entry<String,String> e : vars.entrySet()) {
+                        listener.getLogger().println("  -> Assigned " + e.getKey() + "=" + e.getValue());
+                    }
+                    env.putAll(vars);
+                    for (int port : allocated[i]) {
+                        numbers.add(port);
+                    }
+                }
+                int[] leased = new int[numbers.size()];
+                for (int k = 0; k < leased.length; k++) {
+                    leased[k] = numbers.get(k);
+                }
+                manager.releaseLeases(leased);
+
+                synchronized (this) {
+                    if (stopped) {
+                        freeAll();
+                        return;
+                    }
+                    body = context.newBodyInvoker()
+                            .withContext(EnvironmentExpander.merge(context.get(EnvironmentExpander.class), new ExpanderImpl(env)))
+                            .withCallback(new Callback(types, allocated.clone(), manager.getNodeName()))
+                            .start();
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void fail(Throwable cause) {
+            synchronized (this) {
+                freeAll();
+            }
+            getContext().onFailure(cause);
+        }
+
+        /**
+         * Frees the ports allocated before the block started. Must be called with the lock held.
+         */
+        private void freeAll() {
+            for (int i = 0; i < allocated.length; i++) {
+                if (allocated[i] != null) {
+                    for (int port : allocated[i]) {
+                        manager.free(port);
+                    }
+                    allocated[i] = null;
+                }
+            }
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            BodyExecution b;
+            synchronized (this) {
+                stopped = true;
+                b = body;
+                if (b == null && manager != null) {
+                    if (pending != null) {
+                        manager.cancel(pending);
+                        pending = null;
+                    }
+                    freeAll();
+                }
+            }
+            if (b != null) {
+                b.cancel(cause);
+            } else {
+                getContext().onFailure(cause);
+            }
+        }
+
+        @Override
+        public void onResume() {
+            if (body == null) {
+                // interrupted by a restart while waiting; the ports obtained so far were restored from the journal
+                try {
+                    manager = PortAllocationManager.getManager(getContext().get(Computer.class));
+                    synchronized (this) {
+                        freeAll();
+                    }
+                } catch (Exception e) {
+                    // the node is gone, and so are its ports
+                }
+                getContext().onFailure(new AbortException("Port allocation was interrupted by a restart"));
+            }
+        }
+
+        @Override
+        public String getStatus() {
+            synchronized (this) {
+                return body != null ? "running the block" : pending != null ? "waiting for ports" : "allocating ports";
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Exposes the allocated ports to the block.
+     */
+    private static final class ExpanderImpl extends EnvironmentExpander {
+        private final Map<String,String> env;
+
+        ExpanderImpl(Map<String,String> env) {
+            this.env = env;
+        }
+
+        @Override
+        public void expand(EnvVars env) {
+            env.putAll(this.env);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Cleans up the ports when the block ends, with the same semantics as {@link Port#cleanUp()}.
+     * Only holds the port numbers, so that it survives a restart.
+     */
+    private static final class Callback extends BodyExecutionCallback {
+        private final PortType[] types;
+        private final int[][] ports;
+        private final String nodeName;
+
+        Callback(PortType[] types, int[][] ports, String nodeName) {
+            this.types = types;
+            this.ports = ports;
+            this.nodeName = nodeName;
+        }
+
+        @Override
+        public void onSuccess(final StepContext context, final Object result) {
+            // the clean up waits for the node, see ParallelCleanUpTask
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    try {
+                        cleanUp(context);
+                        Map<String,Integer> portMap = new HashMap<String,Integer>();
+                        for (int i = 0; i < types.length; i++) {
+                            // pooled ports are not preferred, and may be several
+                            if (!(types[i] instanceof PooledPortType)) {
+                                portMap.put(types[i].name, ports[i][0]);
+                            }
+                        }
+                        PreferredPortIndex.get().record(context.get(Run.class).getParent().getFullName(), nodeName, portMap);
+                        context.onSuccess(result);
+                    } catch (Exception e) {
+                        context.onFailure(e);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onFailure(final StepContext context, final Throwable t) {
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    try {
+                        cleanUp(context);
+                    } catch (Exception e) {
+                        t.addSuppressed(e);
+                    }
+                    context.onFailure(t);
+                }
+            });
+        }
+
+        private void cleanUp(StepContext context) throws IOException, InterruptedException {
+            Run<?,?> run = context.get(Run.class);
+            Launcher launcher = context.get(Launcher.class);
+            TaskListener listener = context.get(TaskListener.class);
+            PortAllocationManager manager = PortAllocationManager.getManager(context.get(Computer.class));
+            List<Port> allocated = new ArrayList<Port>();
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] instanceof PooledPortType) {
+                    allocated.add(new PooledPort((PooledPortType) types[i], ports[i], manager));
+                } else {
+                    allocated.add(types[i].createPort(run, manager, ports[i][0], launcher, listener));
+                }
+            }
+            ParallelCleanUpTask.cleanUp(allocated, launcher.getChannel(), listener);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+        @Override
+        public String getFunctionName() {
+            return "allocatePorts";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Allocate TCP ports for the enclosed block";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return new HashSet<Class<?>>(Arrays.asList(Run.class, Computer.class, Launcher.class, TaskListener.class));
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only record of the allocations of one node, so that they survive a controller restart.
+ *
+ * <p>
+ * The journal is a memory-mapped file of {@code allocate(port, owner)} and {@code free(port)}
+ * records. Appending is a copy into the mapped buffer and is never forced to disk, so it is
+ * cheap enough to be done on the allocation path. The operating system writes the pages back
+ * even if the controller process dies.
+ *
+ * <p>
+ * When most records have been superseded, the journal is compacted in place down to the
+ * allocations that are still live. Not thread-safe; guarded by the lock of the owning
+ * {@link PortAllocationManager}.
+ */
+final class AllocationJournal {
+    private static final byte END = 0;
+    private static final byte ALLOCATE = 1;
+    private static final byte FREE = 2;
+
+    private static final int INITIAL_SIZE = 64 * 1024;
+
+    /**
+     * Compact once there are more records than this and four times more records than live allocations.
+     */
+    private static final int COMPACT_THRESHOLD = 4096;
+
+    private final File file;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int records;
+
+    /**
+     * Allocations that are live according to the journal, port to owner ID.
+     */
+    private final Map<Integer,String> live = new HashMap<Integer,String>();
+
+    private AllocationJournal(File file) throws IOException {
+        this.file = file;
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, channel.size()));
+        replay();
+        compact();
+    }
+
+    /**
+     * Returns the file of the journal of a node.
+     */
+    static File getFile(File rootDir, String nodeName) {
+        return new File(new File(rootDir, "port-allocator"), nodeName + ".journal");
+    }
+
+    /**
+     * Opens a journal, creating it if needed and replaying what it contains.
+     */
+    static AllocationJournal open(File file) throws IOException {
+        return new AllocationJournal(file);
+    }
+
+    /**
+     * Allocations recorded in the journal and not freed, port to owner ID.
+     */
+    Map<Integer,String> getLive() {
+        return Collections.unmodifiableMap(live);
+    }
+
+    void allocated(int port, String owner) throws IOException {
+        String id = owner == null ? "" : owner;
+        live.put(port, id);
+        append(ALLOCATE, port, id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void freed(int port) throws IOException {
+        if (live.remove(port) != null) {
+            append(FREE, port, null);
+        }
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private void replay() {
+        buffer.position(0);
+        while (true) {
+            int start = buffer.position();
+            try {
+                byte op = buffer.get();
+                if (op == ALLOCATE) {
+                    int port = buffer.getShort() & 0xFFFF;
+                    byte[] id = new byte[buffer.getShort() & 0xFFFF];
+                    buffer.get(id);
+                    live.put(port, new String(id, StandardCharsets.UTF_8));
+                } else if (op == FREE) {
+                    live.remove(buffer.getShort() & 0xFFFF);
+                } else {
+                    // END, or a record cut short by a crash
+                    buffer.position(start);
+                    return;
+                }
+                records++;
+            } catch (BufferUnderflowException e) {
+                buffer.position(start);
+                return;
+            }
+        }
+    }
+
+    private void append(byte op, int port, byte[] id) throws IOException {
+        int size = 3 + (id == null ? 0 : 2 + id.length);
+        ensureCapacity(size + 1);
+        int start = buffer.position();
+        // write the operation last, so that a half-written record reads as the end
+        buffer.position(start + 1);
+        buffer.putShort((short) port);
+        if (id != null) {
+            buffer.putShort((short) id.length);
+            buffer.put(id);
+        }
+        buffer.put(END);
+        buffer.put(start, op);
+        buffer.position(buffer.position() - 1);
+
+        if (++records > COMPACT_THRESHOLD && records > 4 * live.size()) {
+            compact();
+        }
+    }
+
+    private void ensureCapacity(int size) throws IOException {
+        if (buffer.remaining() < size) {
+            int position = buffer.position();
+            long capacity = Math.max((long) buffer.capacity() * 2, position + size);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * Rewrites the journal to contain only the live allocations.
+     */
+    private void compact() throws IOException {
+        int end = buffer.position();
+        buffer.position(0);
+        records = 0;
+        // terminate first, so that a crash in the middle leaves a prefix of the live allocations
+        buffer.put(0, END);
+        for (Map.Entry<Integer,String> e : live.entrySet()) {
+            append(ALLOCATE, e.getKey(), e.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        int position = buffer.position();
+        for (int i = position; i < end; i++) {
+            buffer.put(i, END);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
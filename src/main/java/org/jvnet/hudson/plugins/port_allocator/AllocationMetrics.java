@@ -0,0 +1,170 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import net.sf.json.JSONObject;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.MalformedObjectNameException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the port allocation paths.
+ *
+ * <p>
+ * Exposed as the {@link #OBJECT_NAME} MBean over JMX, and as JSON through {@link AllocationMetricsAction}.
+ */
+public final class AllocationMetrics implements DynamicMBean {
+    public static final AllocationMetrics INSTANCE = new AllocationMetrics();
+
+    /**
+     * Time spent in {@link PortAllocationManager#allocate}, mostly blocked waiting for a fixed port.
+     */
+    final LatencyHistogram fixedPort = new LatencyHistogram();
+    /**
+     * Time spent in {@link PortAllocationManager#allocateRandom}.
+     */
+    final LatencyHistogram randomPort = new LatencyHistogram();
+    /**
+     * Time spent in {@link PortAllocationManager#allocatePortRange}.
+     */
+    final LatencyHistogram portRange = new LatencyHistogram();
+    /**
+     * Time spent waiting for a port of a pool.
+     */
+    final LatencyHistogram poolWait = new LatencyHistogram();
+    /**
+     * Round trips to the agents to bind, probe or release ports.
+     */
+    final LatencyHistogram remoteProbe = new LatencyHistogram();
+
+    /**
+     * Number of ports checked on the agents.
+     */
+    final LongAdder probedPorts = new LongAdder();
+    /**
+     * Candidate windows or rounds of {@link PortAllocationManager#allocatePortRange} beyond the first.
+     */
+    final LongAdder rangeRetries = new LongAdder();
+    final LongAdder rangeFailures = new LongAdder();
+    /**
+     * Ports of finished builds reclaimed by {@link LeakedPortReaper}.
+     */
+    final LongAdder reapedPorts = new LongAdder();
+
+    private AllocationMetrics() {}
+
+    /**
+     * Returns all current values, including the number of ports in use per node and per pool.
+     */
+    public JSONObject toJSON() {
+        JSONObject o = new JSONObject();
+        o.put("fixedPort", fixedPort.toJSON());
+        o.put("randomPort", randomPort.toJSON());
+        o.put("portRange", portRange.toJSON());
+        o.put("poolWait", poolWait.toJSON());
+        o.put("remoteProbe", remoteProbe.toJSON());
+        o.put("probedPorts", probedPorts.sum());
+        o.put("rangeRetries", rangeRetries.sum());
+        o.put("rangeFailures", rangeFailures.sum());
+        o.put("reapedPorts", reapedPorts.sum());
+
+        JSONObject nodes = new JSONObject();
+        for (PortAllocationManager pam : PortAllocationManager.getManagers()) {
+            JSONObject node = new JSONObject();
+            node.put("portsInUse", pam.getPortsInUse());
+            JSONObject pools = new JSONObject();
+            for (Map.Entry<String,Integer> e : pam.getPoolPortsInUse().entrySet()) {
+                pools.put(e.getKey(), e.getValue());
+            }
+            node.put("pools", pools);
+            nodes.put(pam.getNodeName(), node);
+        }
+        o.put("nodes", nodes);
+        return o;
+    }
+
+    /**
+     * Returns all current values as a flat, sorted name/value map.
+     */
+    Map<String,Long> flatten() {
+        Map<String,Long> values = new TreeMap<String,Long>();
+        fixedPort.flatten("fixedPort", values);
+        randomPort.flatten("randomPort", values);
+        portRange.flatten("portRange", values);
+        poolWait.flatten("poolWait", values);
+        remoteProbe.flatten("remoteProbe", values);
+        values.put("probedPorts", probedPorts.sum());
+        values.put("rangeRetries", rangeRetries.sum());
+        values.put("rangeFailures", rangeFailures.sum());
+        values.put("reapedPorts", reapedPorts.sum());
+        for (PortAllocationManager pam : PortAllocationManager.getManagers()) {
+            String prefix = "nodes." + pam.getNodeName();
+            values.put(prefix + ".portsInUse", (long) pam.getPortsInUse());
+            for (Map.Entry<String,Integer> e : pam.getPoolPortsInUse().entrySet()) {
+                values.put(prefix + ".pools." + e.getKey(), (long) e.getValue());
+            }
+        }
+        return values;
+    }
+
+    public static ObjectName getObjectName() {
+        try {
+            return new ObjectName(OBJECT_NAME);
+        } catch (MalformedObjectNameException e) {
+            throw new AssertionError(e); // impossible
+        }
+    }
+
+    public static final String OBJECT_NAME = "org.jvnet.hudson.plugins.port_allocator:type=AllocationMetrics";
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = flatten().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Read-only: " + attribute.getName());
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String,Long> values = flatten();
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            Long value = values.get(name);
+            if (value != null) {
+                list.add(new Attribute(name, value));
+            }
+        }
+        return list;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        Map<String,Long> values = flatten();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String name : values.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Port allocation metrics",
+                attributes, null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,32 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerResponse2;
+
+import java.io.IOException;
+
+/**
+ * Serves {@link AllocationMetrics} as JSON at {@code /port-allocator/metrics}.
+ */
+@Extension
+public class AllocationMetricsAction implements RootAction {
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "port-allocator";
+    }
+
+    public void doMetrics(StaplerResponse2 rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(AllocationMetrics.INSTANCE.toJSON().toString(2));
+    }
+}
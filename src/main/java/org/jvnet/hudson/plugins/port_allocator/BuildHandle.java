@@ -0,0 +1,54 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Compact identifier of a build, packed in a {@code long}: an interned ID of the full name of its job
+ * in the upper half, and the build number in the lower half. Lets the bookkeeping of
+ * {@link PortAllocationManager} refer to builds without keeping them in memory.
+ *
+ * <p>
+ * 0 is never a valid handle. Interned job names are never forgotten, which is fine as there are
+ * only as many as jobs that ever allocated a port since the controller started.
+ */
+final class BuildHandle {
+    private static final Map<String,Integer> IDS = new HashMap<String,Integer>();
+
+    /**
+     * Job names by ID - 1. Copied on write, so that handles can be described without locking;
+     * new names are rare.
+     */
+    private static final List<String> NAMES = new CopyOnWriteArrayList<String>();
+
+    private BuildHandle() {}
+
+    static synchronized long of(Run<?,?> run) {
+        Job<?,?> job = run.getParent();
+        String name = job == null ? "" : job.getFullName(); // no job for builds mocked in tests
+        Integer id = IDS.get(name);
+        if (id == null) {
+            NAMES.add(name);
+            id = NAMES.size();
+            IDS.put(name, id);
+        }
+        return ((long) id << 32) | (run.getNumber() & 0xFFFFFFFFL);
+    }
+
+    static String getJobName(long handle) {
+        return NAMES.get((int) (handle >>> 32) - 1);
+    }
+
+    static int getNumber(long handle) {
+        return (int) handle;
+    }
+
+    static String toString(long handle) {
+        return getJobName(handle) + " #" + getNumber(handle);
+    }
+}
@@ -1,9 +1,13 @@
 package org.jvnet.hudson.plugins.port_allocator;
 
+import hudson.Extension;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.Launcher;
 import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest2;
 
@@ -29,6 +33,16 @@ public class DefaultPortType extends PortType {
         else
             n = manager.allocateRandom(build, prefPort);
         
+        return createPort(build, manager, n, launcher, buildListener);
+    }
+
+    @Override
+    public boolean isBatchAllocatable() {
+        return true;
+    }
+
+    @Override
+    public Port createPort(Run<?, ?> build, final PortAllocationManager manager, final int n, Launcher launcher, TaskListener listener) {
         return new Port(this) {
             public int get() {
                 return n;
@@ -44,6 +58,7 @@ public class DefaultPortType extends PortType {
         return DescriptorImpl.INSTANCE;
     }
 
+    @Symbol("plainPort")
     public static final class DescriptorImpl extends PortTypeDescriptor {
         private DescriptorImpl() {
             super(DefaultPortType.class);
@@ -58,6 +73,7 @@ public class DefaultPortType extends PortType {
             return "Plain TCP port";
         }
 
+        @Extension
         public static final DescriptorImpl INSTANCE = new DescriptorImpl();
     }
 }
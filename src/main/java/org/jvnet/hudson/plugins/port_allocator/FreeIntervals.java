@@ -0,0 +1,168 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Free ports of a node as disjoint intervals, so that a run of consecutive free ports is found
+ * in one pass over the gaps rather than by trying windows.
+ * Not thread-safe; guarded by the {@link PortAllocationManager} that owns it.
+ */
+final class FreeIntervals {
+    /**
+     * Which of the fitting gaps {@link #find} picks.
+     */
+    enum Fit {
+        /** The lowest one. */
+        FIRST,
+        /** The smallest one, keeping large gaps for large requests. */
+        BEST,
+        /** Any window of any gap, with equal probability, so that builds spread out. */
+        RANDOM
+    }
+
+    /**
+     * First port of each free interval to its last port.
+     */
+    private final TreeMap<Integer,Integer> intervals = new TreeMap<Integer,Integer>();
+
+    /**
+     * Creates the set of all ports from {@code first} to {@code last}.
+     */
+    FreeIntervals(int first, int last) {
+        intervals.put(first, last);
+    }
+
+    boolean contains(int port) {
+        Map.Entry<Integer,Integer> e = intervals.floorEntry(port);
+        return e != null && e.getValue() >= port;
+    }
+
+    void remove(int port) {
+        Map.Entry<Integer,Integer> e = intervals.floorEntry(port);
+        if (e == null || e.getValue() < port) {
+            return;
+        }
+        int lo = e.getKey(), hi = e.getValue();
+        intervals.remove(lo);
+        if (lo < port) {
+            intervals.put(lo, port - 1);
+        }
+        if (port < hi) {
+            intervals.put(port + 1, hi);
+        }
+    }
+
+    void add(int port) {
+        Map.Entry<Integer,Integer> below = intervals.floorEntry(port);
+        if (below != null && below.getValue() >= port) {
+            return;
+        }
+        int lo = port, hi = port;
+        if (below != null && below.getValue() == port - 1) {
+            lo = below.getKey();
+        }
+        Integer above = intervals.remove(port + 1);
+        if (above != null) {
+            hi = above;
+        }
+        intervals.put(lo, hi);
+    }
+
+    /**
+     * Number of disjoint free intervals.
+     */
+    int size() {
+        return intervals.size();
+    }
+
+    /**
+     * Finds {@code count} consecutive free ports between {@code start} and {@code end}.
+     *
+     * @return the first of them, or -1 if there is no such gap
+     */
+    int find(int start, int end, int count, Fit fit, Random rnd) {
+        int best = -1, bestLength = Integer.MAX_VALUE, windows = 0;
+        for (Map.Entry<Integer,Integer> e : overlapping(start, end).entrySet()) {
+            int lo = Math.max(e.getKey(), start), hi = Math.min(e.getValue(), end);
+            int length = hi - lo + 1;
+            if (length < count) {
+                continue;
+            }
+            switch (fit) {
+            case FIRST:
+                return lo;
+            case BEST:
+                if (length < bestLength) {
+                    best = lo;
+                    bestLength = length;
+                }
+                break;
+            default:
+                // reservoir sampling over all the windows seen so far
+                int n = length - count + 1;
+                windows += n;
+                if (rnd.nextInt(windows) < n) {
+                    best = lo + rnd.nextInt(n);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks {@code count} distinct free ports between {@code start} and {@code end}, with equal probability,
+     * in time proportional to the number of free intervals there rather than to the number of ports.
+     *
+     * @return the ports in ascending order, or null if there are not enough of them
+     */
+    int[] sample(int start, int end, int count, Random rnd) {
+        Map<Integer,Integer> gaps = overlapping(start, end);
+        int total = 0;
+        for (Map.Entry<Integer,Integer> e : gaps.entrySet()) {
+            total += Math.min(e.getValue(), end) - Math.max(e.getKey(), start) + 1;
+        }
+        if (total < count) {
+            return null;
+        }
+
+        // Floyd's algorithm picks distinct indices among the free ports
+        Set<Integer> picked = new HashSet<Integer>();
+        for (int j = total - count; j < total; j++) {
+            int t = rnd.nextInt(j + 1);
+            picked.add(picked.contains(t) ? j : t);
+        }
+        int[] indices = new int[count];
+        int k = 0;
+        for (int index : picked) {
+            indices[k++] = index;
+        }
+        Arrays.sort(indices);
+
+        // then maps them to ports in one pass over the gaps
+        int[] ports = new int[count];
+        int seen = 0;
+        k = 0;
+        for (Map.Entry<Integer,Integer> e : gaps.entrySet()) {
+            int lo = Math.max(e.getKey(), start), hi = Math.min(e.getValue(), end);
+            while (k < count && indices[k] - seen <= hi - lo) {
+                ports[k] = lo + indices[k] - seen;
+                k++;
+            }
+            seen += hi - lo + 1;
+        }
+        return ports;
+    }
+
+    private Map<Integer,Integer> overlapping(int start, int end) {
+        Integer from = intervals.floorKey(start);
+        if (from == null || intervals.get(from) < start) {
+            from = start;
+        }
+        return intervals.subMap(from, true, end, true);
+    }
+}
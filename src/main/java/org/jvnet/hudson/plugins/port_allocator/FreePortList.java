@@ -0,0 +1,126 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Free ports of a pool, handed out in the order of its {@link Pool.Selection}.
+ * Adding and polling take constant time, give or take a scan of the bitmap by words.
+ * Not thread-safe; guarded by the {@link PortAllocationManager} that owns it.
+ */
+abstract class FreePortList {
+    /**
+     * Adds a port, unless it is already in the list.
+     */
+    abstract void add(int port);
+
+    /**
+     * Removes and returns the next port, or 0 if the list is empty.
+     */
+    abstract int poll();
+
+    static FreePortList create(Pool.Selection selection, int capacity) {
+        switch (selection) {
+        case ROUND_ROBIN:
+            return new RoundRobin();
+        case RANDOM:
+            return new Random(capacity);
+        default:
+            return new LeastRecentlyFreed();
+        }
+    }
+
+    /**
+     * Hands out the port that has been free for the longest time, so that a port just freed
+     * gets some rest, for instance for its connections to leave {@code TIME_WAIT}.
+     */
+    private static final class LeastRecentlyFreed extends FreePortList {
+        private final ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        private final BitSet queued = new BitSet(PortAllocationManager.PORT_COUNT);
+
+        @Override
+        void add(int port) {
+            if (!queued.get(port)) {
+                queued.set(port);
+                queue.add(port);
+            }
+        }
+
+        @Override
+        int poll() {
+            Integer port = queue.poll();
+            if (port == null) {
+                return 0;
+            }
+            queued.clear(port);
+            return port;
+        }
+    }
+
+    /**
+     * Hands out the next free port after the last one handed out, in ascending order and wrapping around,
+     * so that all the ports of the pool get used in turn.
+     */
+    private static final class RoundRobin extends FreePortList {
+        private final BitSet free = new BitSet(PortAllocationManager.PORT_COUNT);
+        private int cursor;
+
+        @Override
+        void add(int port) {
+            free.set(port);
+        }
+
+        @Override
+        int poll() {
+            int port = free.nextSetBit(cursor);
+            if (port < 0) {
+                port = free.nextSetBit(0);
+                if (port < 0) {
+                    return 0;
+                }
+            }
+            free.clear(port);
+            cursor = port + 1;
+            return port;
+        }
+    }
+
+    /**
+     * Hands out any free port, with equal probability.
+     */
+    private static final class Random extends FreePortList {
+        private final BitSet present = new BitSet(PortAllocationManager.PORT_COUNT);
+        private int[] ports;
+        private int size;
+
+        Random(int capacity) {
+            ports = new int[Math.max(capacity, 1)];
+        }
+
+        @Override
+        void add(int port) {
+            if (!present.get(port)) {
+                present.set(port);
+                if (size == ports.length) {
+                    int[] grown = new int[size * 2];
+                    System.arraycopy(ports, 0, grown, 0, size);
+                    ports = grown;
+                }
+                ports[size++] = port;
+            }
+        }
+
+        @Override
+        int poll() {
+            if (size == 0) {
+                return 0;
+            }
+            int i = ThreadLocalRandom.current().nextInt(size);
+            int port = ports[i];
+            ports[i] = ports[--size];
+            present.clear(port);
+            return port;
+        }
+    }
+}
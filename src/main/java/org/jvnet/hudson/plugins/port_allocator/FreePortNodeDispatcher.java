@@ -0,0 +1,151 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steers builds away from nodes where their fixed or pooled ports are busy, as long as another node
+ * could give them all their ports right now, and would take them. Otherwise the node is left to the
+ * load balancer, and the build waits for its ports there as before.
+ *
+ * <p>
+ * Off by default, as it overrides the node affinity of the load balancer.
+ * Nodes on which no port has been allocated yet are considered to have all their ports free.
+ */
+@Extension
+public class FreePortNodeDispatcher extends QueueTaskDispatcher {
+    /**
+     * How long the nodes found for an item are reused, so that a queue maintenance,
+     * which asks about every node in turn, only looks through the nodes once per item.
+     */
+    private static final long CACHE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Nodes found for the items recently asked about, by item ID.
+     */
+    private final Map<Long,Found> found = new ConcurrentHashMap<Long,Found>();
+
+    @Override
+    public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        if (!PREFER_NODES_WITH_FREE_PORTS) {
+            return null;
+        }
+        Jenkins jenkins = Jenkins.get();
+        List<Node> nodes = new ArrayList<Node>(jenkins.getNodes());
+        nodes.add(jenkins);
+        return canTake(node, item, PortRequirements.of(item.task), nodes, QueueTaskDispatcher.all());
+    }
+
+    CauseOfBlockage canTake(Node node, Queue.BuildableItem item, PortRequirements requirements,
+            List<Node> nodes, Iterable<QueueTaskDispatcher> dispatchers) {
+        Computer computer = node.toComputer();
+        if (requirements == null || computer == null || isSatisfied(requirements, computer)) {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        Found f = found.get(item.getId());
+        if (f == null || now - f.time > CACHE_NANOS) {
+            f = new Found(now, findNodes(item, requirements, nodes, dispatchers));
+            for (Iterator<Found> it = found.values().iterator(); it.hasNext(); ) {
+                if (now - it.next().time > CACHE_NANOS) {
+                    it.remove();
+                }
+            }
+            found.put(item.getId(), f);
+        }
+        for (Node other : f.nodes) {
+            if (other != node) {
+                return new PortsFreeElsewhere(other.getDisplayName());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks for idle nodes that have all the ports free and that every other dispatcher lets the item run on.
+     * Stops at two, which is enough to have one other than any given node.
+     */
+    private List<Node> findNodes(Queue.BuildableItem item, PortRequirements requirements,
+            List<Node> nodes, Iterable<QueueTaskDispatcher> dispatchers) {
+        List<Node> result = new ArrayList<Node>(2);
+        for (Node other : nodes) {
+            Computer c = other.toComputer();
+            if (c == null || !c.isOnline() || c.countIdle() == 0 || !isSatisfied(requirements, c)
+                    || !isAllowed(other, item, dispatchers)) {
+                continue;
+            }
+            result.add(other);
+            if (result.size() == 2) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static boolean isSatisfied(PortRequirements requirements, Computer computer) {
+        PortAllocationManager pam = PortAllocationManager.getExistingManager(computer);
+        return pam == null || requirements.isSatisfiedBy(pam);
+    }
+
+    private boolean isAllowed(Node node, Queue.BuildableItem item, Iterable<QueueTaskDispatcher> dispatchers) {
+        if (node.canTake(item) != null) {
+            return false;
+        }
+        for (QueueTaskDispatcher d : dispatchers) {
+            if (!(d instanceof FreePortNodeDispatcher) && d.canTake(node, item) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Nodes found for an item, and when.
+     */
+    private static final class Found {
+        final long time;
+        final List<Node> nodes;
+
+        Found(long time, List<Node> nodes) {
+            this.time = time;
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * Tells why the build did not go to a node it could otherwise run on.
+     */
+    public static final class PortsFreeElsewhere extends CauseOfBlockage {
+        private final String nodeName;
+
+        PortsFreeElsewhere(String nodeName) {
+            this.nodeName = nodeName;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Its ports are busy here but free on " + nodeName;
+        }
+    }
+
+    /**
+     * Whether builds should be kept off nodes where their ports are busy.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Tunable from the script console")
+    public static boolean PREFER_NODES_WITH_FREE_PORTS = SystemProperties.getBoolean(FreePortNodeDispatcher.class.getName()+".preferNodesWithFreePorts");
+}
@@ -1,10 +1,14 @@
 package org.jvnet.hudson.plugins.port_allocator;
 
+import hudson.Extension;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.remoting.Callable;
 import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest2;
 
@@ -56,13 +60,23 @@ public class GlassFishJmxPortType extends PortType {
         else
             n = manager.allocateRandom(build, prefPort);
 
+        return createPort(build, manager, n, launcher, buildListener);
+    }
+
+    @Override
+    public boolean isBatchAllocatable() {
+        return true;
+    }
+
+    @Override
+    public Port createPort(Run<?, ?> build, final PortAllocationManager manager, final int n, final Launcher launcher, final TaskListener buildListener) {
         /**
          * Cleans up GlassFish instance.
          */
         final class GlassFishCleanUpTask implements Callable<Void,IOException>, Serializable {
-            private final BuildListener buildListener;
+            private final TaskListener buildListener;
 
-            public GlassFishCleanUpTask(BuildListener buildListener) {
+            public GlassFishCleanUpTask(TaskListener buildListener) {
                 this.buildListener = buildListener;
             }
 
@@ -119,12 +133,22 @@ public class GlassFishJmxPortType extends PortType {
             }
 
             public void cleanUp() throws IOException, InterruptedException {
-                manager.free(n);
+                free();
                 hudson.remoting.VirtualChannel channel = launcher.getChannel();
                 if (channel != null) {
-                    channel.call(new GlassFishCleanUpTask(buildListener));
+                    channel.call(getCleanUpTask());
                 }
             }
+
+            @Override
+            public void free() {
+                manager.free(n);
+            }
+
+            @Override
+            public Callable<Void,IOException> getCleanUpTask() {
+                return new GlassFishCleanUpTask(buildListener);
+            }
         };
     }
 
@@ -132,6 +156,7 @@ public class GlassFishJmxPortType extends PortType {
         return DescriptorImpl.INSTANCE;
     }
 
+    @Symbol("glassFishJmxPort")
     public static final class DescriptorImpl extends PortTypeDescriptor {
         private DescriptorImpl() {
             super(GlassFishJmxPortType.class);
@@ -149,6 +174,7 @@ public class GlassFishJmxPortType extends PortType {
             return "GlassFish JMX port";
         }
 
+        @Extension
         public static final DescriptorImpl INSTANCE = new DescriptorImpl();
     }
 
@@ -0,0 +1,90 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import net.sf.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations into fixed, roughly exponential buckets.
+ * Recording never blocks, so it can be used on the allocation paths.
+ */
+final class LatencyHistogram {
+    /**
+     * Upper bounds of the buckets, in milliseconds. The last bucket is unbounded.
+     */
+    private static final long[] BOUNDS = {1, 5, 10, 50, 100, 500, 1000, 5000, 10000, 60000};
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int i = 0;
+        while (i < BOUNDS.length && millis > BOUNDS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, as returned by {@link System#nanoTime()}.
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos.sum());
+    }
+
+    long getMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+    }
+
+    JSONObject toJSON() {
+        JSONObject buckets = new JSONObject();
+        for (int i = 0; i < this.buckets.length; i++) {
+            buckets.put(bucketName(i), this.buckets[i].sum());
+        }
+        JSONObject o = new JSONObject();
+        o.put("count", getCount());
+        o.put("totalMillis", getTotalMillis());
+        o.put("maxMillis", getMaxMillis());
+        o.put("buckets", buckets);
+        return o;
+    }
+
+    /**
+     * Adds the values of this histogram to a flat name/value map, with keys starting with {@code prefix}.
+     */
+    void flatten(String prefix, Map<String,Long> into) {
+        into.put(prefix + ".count", getCount());
+        into.put(prefix + ".totalMillis", getTotalMillis());
+        into.put(prefix + ".maxMillis", getMaxMillis());
+        for (int i = 0; i < buckets.length; i++) {
+            into.put(prefix + "." + bucketName(i), buckets[i].sum());
+        }
+    }
+
+    private static String bucketName(int i) {
+        return i < BOUNDS.length ? "le" + BOUNDS[i] + "ms" : "inf";
+    }
+}
@@ -0,0 +1,66 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reclaims the ports of builds that finished without freeing them, for instance because they
+ * were killed between {@link PortAllocator#setUp} and the tear down, so that builds waiting
+ * for those ports do not wait forever.
+ *
+ * <p>
+ * Runs for each build as it is finalized, and periodically over all the nodes to catch the rest.
+ */
+@Extension
+public class LeakedPortReaper extends AsyncPeriodicWork {
+    public LeakedPortReaper() {
+        super("Port allocator leaked port reaper");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return REAP_PERIOD;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        int reaped = 0;
+        for (PortAllocationManager pam : PortAllocationManager.getManagers()) {
+            reaped += pam.reap(null);
+        }
+        if (reaped > 0) {
+            listener.getLogger().println("Reclaimed " + reaped + " ports of finished builds");
+        }
+    }
+
+    /**
+     * Reclaims whatever a build still holds once it is done.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?,?>> {
+        @Override
+        public void onFinalized(final Run<?,?> run) {
+            Timer.get().submit(new Runnable() {
+                public void run() {
+                    for (PortAllocationManager pam : PortAllocationManager.getManagers()) {
+                        pam.reap(run);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * How many milliseconds apart the periodic sweeps run.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Tunable from the script console")
+    public static long REAP_PERIOD = SystemProperties.getLong(LeakedPortReaper.class.getName()+".reapPeriod", TimeUnit.MINUTES.toMillis(5));
+}
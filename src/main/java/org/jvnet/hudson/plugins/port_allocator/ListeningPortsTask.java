@@ -0,0 +1,71 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import hudson.remoting.Callable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.BitSet;
+
+/**
+ * Lists the local TCP ports that are bound on a Linux agent, listening or not, from
+ * {@code /proc/net/tcp} and {@code /proc/net/tcp6}, so that the controller can skip them
+ * without trying to bind them one by one.
+ *
+ * <p>
+ * Returns the ports as a bitmap, as by {@link BitSet#toLongArray()}, or null if the agent does not
+ * have these files, in which case ports have to be probed.
+ */
+final class ListeningPortsTask implements Callable<long[],IOException> {
+    private static final File[] TABLES = {new File("/proc/net/tcp"), new File("/proc/net/tcp6")};
+
+    /**
+     * State of a socket that is closing and does not prevent a server from binding the port.
+     */
+    private static final String TIME_WAIT = "06";
+
+    public long[] call() throws IOException {
+        if (!TABLES[0].isFile()) {
+            return null;
+        }
+        BitSet ports = new BitSet(PortAllocationManager.PORT_COUNT);
+        for (File table : TABLES) {
+            if (table.isFile()) {
+                try (BufferedReader r = Files.newBufferedReader(table.toPath(), StandardCharsets.US_ASCII)) {
+                    parse(r, ports);
+                }
+            }
+        }
+        return ports.toLongArray();
+    }
+
+    /**
+     * Adds the local ports of the sockets listed in a {@code /proc/net/tcp} table, header included.
+     */
+    static void parse(BufferedReader table, BitSet ports) throws IOException {
+        table.readLine(); // header
+        String line;
+        while ((line = table.readLine()) != null) {
+            // "  0: 0100007F:1F90 00000000:0000 0A ..."
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 4 || fields[3].equals(TIME_WAIT)) {
+                continue;
+            }
+            int colon = fields[1].lastIndexOf(':');
+            try {
+                ports.set(Integer.parseInt(fields[1].substring(colon + 1), 16));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                // not a socket line
+            }
+        }
+    }
+
+    @Override
+    public void checkRoles(final org.jenkinsci.remoting.RoleChecker checker) throws SecurityException {
+        checker.check(this, jenkins.security.Roles.SLAVE);
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,127 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the clean up tasks of the ports of a build concurrently on the node,
+ * giving up on each after a deadline.
+ *
+ * <p>
+ * A task that does not finish in time is interrupted and left behind on a daemon thread,
+ * so that a hung server cannot hold the executor of the build.
+ */
+final class ParallelCleanUpTask implements Callable<String[],IOException> {
+    /**
+     * Labels of the ports, such as {@code TOMCAT=8005}, in the same order as {@link #tasks}.
+     */
+    private final String[] labels;
+    private final List<Callable<Void,IOException>> tasks;
+    private final long timeoutMillis;
+
+    ParallelCleanUpTask(String[] labels, List<Callable<Void,IOException>> tasks, long timeoutMillis) {
+        this.labels = labels;
+        this.tasks = tasks;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Cleans up the ports of a build: frees them all first, then runs the clean up tasks
+     * of those that have one concurrently on the node, and logs the outcome of each.
+     *
+     * @param channel channel to the node, or null if it is gone, in which case the ports are only freed
+     */
+    static void cleanUp(List<Port> ports, VirtualChannel channel, TaskListener listener) throws IOException, InterruptedException {
+        List<String> labels = new ArrayList<String>();
+        List<Callable<Void,IOException>> tasks = new ArrayList<Callable<Void,IOException>>();
+        for (Port p : ports) {
+            Callable<Void,IOException> task = p.getCleanUpTask();
+            if (task == null) {
+                p.cleanUp();
+            } else {
+                p.free();
+                labels.add(p.type.name + "=" + p.get());
+                tasks.add(task);
+            }
+        }
+        if (!tasks.isEmpty() && channel != null) {
+            String[] results = channel.call(new ParallelCleanUpTask(
+                    labels.toArray(new String[labels.size()]), tasks, PortAllocator.CLEANUP_TIMEOUT));
+            for (String result : results) {
+                listener.getLogger().println("Port " + result);
+            }
+        }
+    }
+
+    /**
+     * @return one line per port describing the outcome and duration of its clean up
+     */
+    public String[] call() throws IOException {
+        final long start = System.nanoTime();
+        final long[] durations = new long[tasks.size()];
+        List<FutureTask<Void>> futures = new ArrayList<FutureTask<Void>>();
+        for (int i = 0; i < tasks.size(); i++) {
+            final int index = i;
+            final Callable<Void,IOException> task = tasks.get(i);
+            FutureTask<Void> future = new FutureTask<Void>(new java.util.concurrent.Callable<Void>() {
+                public Void call() throws IOException {
+                    try {
+                        return task.call();
+                    } finally {
+                        durations[index] = System.nanoTime() - start;
+                    }
+                }
+            });
+            Thread t = new Thread(future, "Port allocator clean up of " + labels[i]);
+            t.setDaemon(true);
+            t.start();
+            futures.add(future);
+        }
+
+        String[] results = new String[futures.size()];
+        boolean interrupted = false;
+        for (int i = 0; i < results.length; i++) {
+            FutureTask<Void> future = futures.get(i);
+            String outcome;
+            try {
+                if (interrupted) {
+                    throw new InterruptedException();
+                }
+                // all tasks started together, so each one's deadline is counted from the start
+                long remaining = timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                future.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+                outcome = "cleaned up in " + TimeUnit.NANOSECONDS.toMillis(durations[i]) + " ms";
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                outcome = "timed out after " + timeoutMillis + " ms";
+            } catch (ExecutionException e) {
+                outcome = "failed in " + TimeUnit.NANOSECONDS.toMillis(durations[i]) + " ms: " + e.getCause();
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                interrupted = true;
+                outcome = "interrupted";
+            }
+            results[i] = labels[i] + " " + outcome;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
+    @Override
+    public void checkRoles(final org.jenkinsci.remoting.RoleChecker checker) throws SecurityException {
+        checker.check(this, jenkins.security.Roles.SLAVE);
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -2,6 +2,10 @@ package org.jvnet.hudson.plugins.port_allocator;
 
 import hudson.Plugin;
 
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * PortAllocator Plugin
  * Allocates free ports to the variables.
@@ -15,5 +19,23 @@ public class PluginImpl extends Plugin {
         PortTypeDescriptor.LIST.add(PooledPortType.DescriptorImpl.INSTANCE);
         PortTypeDescriptor.LIST.add(GlassFishJmxPortType.DescriptorImpl.INSTANCE);
         PortTypeDescriptor.LIST.add(TomcatShutdownPortType.DescriptorImpl.INSTANCE);
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    AllocationMetrics.INSTANCE, AllocationMetrics.getObjectName());
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to register port allocation metrics with JMX", e);
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(AllocationMetrics.getObjectName());
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to unregister port allocation metrics", e);
+        }
     }
+
+    private static final Logger LOGGER = Logger.getLogger(PluginImpl.class.getName());
 }
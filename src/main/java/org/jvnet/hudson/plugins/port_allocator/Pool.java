@@ -3,6 +3,11 @@ package org.jvnet.hudson.plugins.port_allocator;
 /**
  * Represents a port pool.
  *
+ * <p>
+ * {@link #ports} holds the definition as entered, a comma separated list of
+ * port numbers and port ranges like {@code 9000-9999,12000-12100}. It is compiled
+ * into a {@link PortRangeList} once, when the configuration is submitted or loaded.
+ *
  * @author pepov
  */
 public class Pool {
@@ -10,16 +15,76 @@ public class Pool {
     public String name;
     public String ports;
 
-    public int[] getPortsAsInt() {
+    /**
+     * Name of the {@link Selection}, or null for the default.
+     */
+    public String selection;
 
-        String[] portsItemsAsString = ports.split(",");
+    private transient volatile PortRangeList compiled;
 
-        int[] portsItems = new int[portsItemsAsString.length];
+    /**
+     * Parses {@link #ports}.
+     *
+     * @throws IllegalArgumentException if the definition is malformed
+     */
+    public PortRangeList compile() {
+        PortRangeList c = PortRangeList.parse(ports);
+        compiled = c;
+        return c;
+    }
 
-        for (int i = 0; i < portsItemsAsString.length; i++) {
-            portsItems[i] = Integer.parseInt(portsItemsAsString[i]);
+    /**
+     * Returns the compiled port list, compiling it first if needed.
+     */
+    public PortRangeList getPortRanges() {
+        PortRangeList c = compiled;
+        if (c == null) {
+            c = compile();
+        }
+        return c;
+    }
+
+    /**
+     * How free ports of a pool are chosen.
+     */
+    public enum Selection {
+        /** The port that has been free for the longest time. */
+        LEAST_RECENTLY_FREED,
+        /** The next port after the last one handed out. */
+        ROUND_ROBIN,
+        /** Any port. */
+        RANDOM
+    }
+
+    public Selection getSelection() {
+        if (selection == null || selection.isEmpty()) {
+            return Selection.LEAST_RECENTLY_FREED;
+        }
+        try {
+            return Selection.valueOf(selection);
+        } catch (IllegalArgumentException e) {
+            return Selection.LEAST_RECENTLY_FREED;
         }
+    }
 
-        return portsItems;
+    public int[] getPortsAsInt() {
+        return getPortRanges().toArray();
+    }
+
+    public boolean contains(int port) {
+        return getPortRanges().contains(port);
+    }
+
+    public int size() {
+        return getPortRanges().size();
+    }
+
+    protected Object readResolve() {
+        try {
+            compile();
+        } catch (IllegalArgumentException e) {
+            // reported when the pool is used
+        }
+        return this;
     }
 }
@@ -0,0 +1,52 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+/**
+ * Keeps builds that need pooled ports in the queue until their pools have free ports on the node,
+ * so that they do not take an executor only to wait in {@link PortAllocationManager#allocateFromPool}.
+ *
+ * <p>
+ * {@link PortAllocationManager} schedules a queue maintenance whenever a pool port becomes free.
+ * Two builds may still be let through for the last port; the second one then waits as before.
+ */
+@Extension
+public class PoolCapacityDispatcher extends QueueTaskDispatcher {
+    @Override
+    public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        PortRequirements requirements = PortRequirements.of(item.task);
+        Computer computer = node.toComputer();
+        if (requirements == null || computer == null) {
+            return null;
+        }
+        PortAllocationManager pam = PortAllocationManager.getExistingManager(computer);
+        if (pam == null) {
+            return null; // no port has been allocated on the node yet
+        }
+        Pool exhausted = requirements.getExhaustedPool(pam);
+        return exhausted == null ? null : new PoolExhausted(exhausted.name, pam.getNodeName());
+    }
+
+    /**
+     * Tells why the build is still in the queue.
+     */
+    static final class PoolExhausted extends CauseOfBlockage {
+        private final String pool;
+        private final String node;
+
+        PoolExhausted(String pool, String node) {
+            this.pool = pool;
+            this.node = node;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Waiting for a free port in pool " + pool + " on " + node;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import hudson.model.Run;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A build waiting in line for ports of a pool in {@link PortAllocationManager}.
+ *
+ * <p>
+ * All the ports are granted at once, so that a build never holds some ports of the pool
+ * while it waits for the others. The lease completes while the manager is locked,
+ * so what depends on it must run asynchronously.
+ */
+final class PoolLease extends CompletableFuture<int[]> {
+    final Run owner;
+
+    /**
+     * Number of ports requested.
+     */
+    final int count;
+
+    /**
+     * Whether the ports must be consecutive.
+     */
+    final boolean consecutive;
+
+    PoolLease(Run owner, int count, boolean consecutive) {
+        this.owner = owner;
+        this.count = count;
+        this.consecutive = consecutive;
+    }
+
+    /**
+     * Hands the ports over; returns false if the request has been withdrawn in the meantime.
+     */
+    boolean grant(int[] ports) {
+        return complete(ports);
+    }
+}
@@ -1,6 +1,7 @@
 package org.jvnet.hudson.plugins.port_allocator;
 
 import java.io.IOException;
+import java.util.Map;
 
 /**
  * Represents a port, that has been allocated from a pool.
@@ -11,22 +12,51 @@ import java.io.IOException;
  */
 public class PooledPort extends Port {
 
-	private int selectedPort;
+	private int[] selectedPorts;
 	private PortAllocationManager manager;
 
 	public PooledPort(PooledPortType portType, int selectedPort, PortAllocationManager manager) {
+		this(portType, new int[] {selectedPort}, manager);
+	}
+
+	public PooledPort(PooledPortType portType, int[] selectedPorts, PortAllocationManager manager) {
 		super(portType);
-		this.selectedPort = selectedPort;
+		this.selectedPorts = selectedPorts;
 		this.manager = manager;
 	}
 
 	@Override
 	public int get() {
-		return selectedPort;
+		return selectedPorts[0];
+	}
+
+	@Override
+	public int[] getAll() {
+		return selectedPorts.clone();
 	}
-	
+
+	/**
+	 * Exposes a single port as {@code NAME}, and several as {@code NAME_0} to {@code NAME_<n-1>}.
+	 */
+	@Override
+	public void buildEnvVars(Map<String,String> env) {
+		buildEnvVars(type.name, selectedPorts, env);
+	}
+
+	static void buildEnvVars(String name, int[] ports, Map<String,String> env) {
+		if (ports.length == 1) {
+			env.put(name, String.valueOf(ports[0]));
+			return;
+		}
+		for (int i = 0; i < ports.length; i++) {
+			env.put(name + "_" + i, String.valueOf(ports[i]));
+		}
+	}
+
 	@Override
 	public void cleanUp() throws IOException, InterruptedException {
-		manager.free(selectedPort);
+		for (int port : selectedPorts) {
+			manager.free(port);
+		}
 	}
 }
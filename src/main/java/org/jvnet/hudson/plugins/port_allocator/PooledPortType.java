@@ -1,15 +1,19 @@
 package org.jvnet.hudson.plugins.port_allocator;
 
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.util.ListBoxModel;
 import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest2;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Port type for representing a pool of ports used concurrently by parallel jobs
@@ -20,14 +24,42 @@ public class PooledPortType extends PortType {
 
     private int[] pool;
 
+    /**
+     * Number of ports to allocate from the pool.
+     */
+    public int count = 1;
+
+    /**
+     * Whether the ports must be consecutive.
+     */
+    public boolean consecutive;
+
     @DataBoundConstructor
     public PooledPortType(String name) {
         super(name);
     }
 
+    public int getCount() {
+        return Math.max(count, 1);
+    }
+
+    @DataBoundSetter
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public boolean isConsecutive() {
+        return consecutive;
+    }
+
+    @DataBoundSetter
+    public void setConsecutive(boolean consecutive) {
+        this.consecutive = consecutive;
+    }
+
     /**
-     * Try to allocate one free port from the given pool.
-     * Wait for a short period if no free port is available, then try again.
+     * Allocate {@link #getCount()} free ports from the given pool, all at once.
+     * If not enough ports are free, wait in line until they are.
      */
     @Override
     public Port allocate(
@@ -39,22 +71,20 @@ public class PooledPortType extends PortType {
     ) throws IOException, InterruptedException {
 
         try {
-            while (true) {
-
-                Pool pool = PortAllocator.DESCRIPTOR.getPoolByName(name);
-
-                synchronized (pool) {
-                    for (int port : pool.getPortsAsInt()) {
-                        if (manager.isFree(port)) {
-                            manager.allocate(build, port);
-                            return new PooledPort(this, port, manager);
-                        }
-                    }
-                    pool.wait(500);
-                }
+            Pool pool = PortAllocator.DESCRIPTOR.getPoolByName(name);
+
+            long start = System.nanoTime();
+            int[] ports = manager.allocateFromPool(build, pool, getCount(), consecutive);
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (waited > 0) {
+                buildListener.getLogger().println("  Waited " + waited + " ms for free ports in pool " + name);
             }
+            return new PooledPort(this, ports, manager);
         } catch (PoolNotDefinedException e) {
             throw new RuntimeException("Undefined pool: " + name);
+        } catch (IllegalArgumentException e) {
+            // the pool is too small for the request
+            throw new AbortException(e.getMessage());
         }
     }
 
@@ -63,7 +93,7 @@ public class PooledPortType extends PortType {
         return DescriptorImpl.INSTANCE;
     }
 
-    @Extension
+    @Extension @Symbol("pooledPort")
     public static final class DescriptorImpl extends PortTypeDescriptor {
 
         public DescriptorImpl() {
@@ -80,9 +110,12 @@ public class PooledPortType extends PortType {
                 );
             }
 
-            return new PooledPortType(
+            PooledPortType type = new PooledPortType(
                 formData.getString("name")
             );
+            type.setCount(formData.optInt("count", 1));
+            type.setConsecutive(formData.optBoolean("consecutive"));
+            return type;
         }
 
         public String getDisplayName() {
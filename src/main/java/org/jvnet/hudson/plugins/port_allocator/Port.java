@@ -1,6 +1,9 @@
 package org.jvnet.hudson.plugins.port_allocator;
 
+import hudson.remoting.Callable;
+
 import java.io.IOException;
+import java.util.Map;
 
 /**
  * Represents an assigned TCP port and encapsulates how it should be cleaned up.
@@ -22,8 +25,45 @@ public abstract class Port {
      */
     public abstract int get();
 
+    /**
+     * Gets all the TCP port numbers, for ports that stand for several of them.
+     */
+    public int[] getAll() {
+        return new int[] {get()};
+    }
+
+    /**
+     * Exposes the port to the build as environment variables.
+     */
+    public void buildEnvVars(Map<String,String> env) {
+        env.put(type.name, String.valueOf(get()));
+    }
+
     /**
      * Frees the port.
      */
     public abstract void cleanUp() throws IOException, InterruptedException;
+
+    /**
+     * Returns the part of {@link #cleanUp()} that runs on the node, or null if there is none.
+     *
+     * <p>
+     * Ports that return a task also override {@link #free()}, so that {@link PortAllocator}
+     * can free all the ports of a build first and then run their clean up tasks concurrently,
+     * with a deadline, instead of calling {@link #cleanUp()} on each port in turn.
+     */
+    public Callable<Void,IOException> getCleanUpTask() {
+        return null;
+    }
+
+    /**
+     * Frees the port in the book-keeping, without the clean up done on the node.
+     * Only called if {@link #getCleanUpTask()} returns a task.
+     *
+     * <p>
+     * Defaults to {@link #cleanUp()}, for ports written before the clean up task existed.
+     */
+    public void free() throws IOException, InterruptedException {
+        cleanUp();
+    }
 }
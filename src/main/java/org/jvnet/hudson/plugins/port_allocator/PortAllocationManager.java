@@ -1,221 +1,1810 @@
 package org.jvnet.hudson.plugins.port_allocator;
 
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import hudson.Extension;
 import hudson.model.AbstractBuild;
 import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.slaves.ComputerListener;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.ServerSocket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.Random;
-import java.util.WeakHashMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Manages ports in use.
+ *
+ * @author Rama Pulavarthi
+ * @author Kohsuke Kawaguchi
+ */
+public final class PortAllocationManager {
+    /**
+     * Raw name of the node, which keys this manager in {@link #INSTANCES}.
+     */
+    private final String name;
+
+    /**
+     * Current computer of the node. Replaced when Jenkins creates a new one for the same node,
+     * so that the allocations survive reconnects and configuration changes.
+     */
+    private volatile Computer node;
+
+    /** Maximum number of tries to allocate a specific port range. */
+    private static final int MAX_TRIES = 100;
+
+    /** Number of TCP port numbers, and so the size of the occupancy bitmap. */
+    static final int PORT_COUNT = 65536;
+
+    /**
+     * Ports currently in use. A set bit means that the port is allocated.
+     */
+    private final BitSet used = new BitSet(PORT_COUNT);
+
+    /**
+     * Copy of {@link #used} that can be read without the lock, by 64-port words. Only written
+     * with the lock held, in step with {@link #used}, so that readers such as {@link #isFree(int)},
+     * status pages and monitoring never wait behind an allocation or a remote probe.
+     */
+    private final AtomicLongArray occupancy = new AtomicLongArray(PORT_COUNT / 64);
+
+    /**
+     * Ports that are neither {@link #used} nor {@link #busy}, for the allocation of port ranges.
+     */
+    private final FreeIntervals free = new FreeIntervals(1, PORT_COUNT - 1);
+
+    /**
+     * Ports that the node recently reported as taken by some other process. They are left out
+     * of port ranges until they expire, after {@link #BUSY_PORT_TIMEOUT}.
+     */
+    private final BitSet busy = new BitSet(PORT_COUNT);
+
+    /**
+     * Expiry time of the {@link #busy} ports, as by {@link System#nanoTime()}, by port.
+     */
+    private final Map<Integer,Long> busyUntil = new HashMap<Integer,Long>();
+
+    /**
+     * The {@link #busy} ports by expiry time, soonest first, so that ports marked for a short time
+     * do not wait behind those marked for longer. Entries superseded in {@link #busyUntil} are skipped.
+     */
+    private final PriorityQueue<BusyPort> busyExpiry = new PriorityQueue<BusyPort>();
+
+    /**
+     * When the bound ports of the node were last listed by {@link ListeningPortsTask}, as by
+     * {@link System#nanoTime()}; or 0 if never.
+     */
+    private long scanned;
+
+    /**
+     * True if the node cannot list its bound ports, so they have to be probed one by one.
+     */
+    private boolean scanUnsupported;
+
+    /** Number of ports per page of {@link #owners}. */
+    private static final int PAGE_SIZE = 1024;
+
+    /**
+     * {@link BuildHandle}s of the builds that use the ports, by port, in pages allocated on demand;
+     * 0 for ports without a known owner, such as orphans.
+     * Only written with the lock held, but can be read without it; use {@link #used} to test occupancy.
+     */
+    private final AtomicReferenceArray<AtomicLongArray> owners = new AtomicReferenceArray<AtomicLongArray>(PORT_COUNT / PAGE_SIZE);
+
+    /**
+     * Builds that own ports on this node, by handle. Only weakly referenced, so that a leaked port
+     * does not keep a finished build and everything it refers to in memory.
+     */
+    private final Map<Long,OwnerRef> liveOwners = new HashMap<Long,OwnerRef>();
+
+    /**
+     * Subset of {@link #used} that is only tentatively reserved while the port is
+     * being probed on the node. Probes run without holding the lock of this object,
+     * and the reservation is then either committed or rolled back.
+     */
+    private final BitSet reserved = new BitSet(PORT_COUNT);
+
+    /**
+     * Free lists and waiters of the port pools used on this node, by pool name.
+     * Only modified with the lock held, but can be iterated without it to report usage.
+     */
+    private final Map<String,PoolState> pools = new ConcurrentHashMap<String,PoolState>();
+
+    /**
+     * Builds waiting for a specific port, in arrival order, by port.
+     * Only ports that somebody is waiting for have an entry.
+     */
+    private final Map<Integer,ArrayDeque<PortWaiter>> portWaiters = new HashMap<Integer,ArrayDeque<PortWaiter>>();
+
+    /**
+     * Ports that are held bound on the agent by {@link PortLeases}.
+     */
+    private final BitSet leased = new BitSet(PORT_COUNT);
+
+    /**
+     * Ports restored from the journal whose owner is no longer building.
+     * They are kept out of circulation for {@link #ORPHAN_TIMEOUT}, as processes
+     * left behind by the build may still listen on them.
+     */
+    private final BitSet orphaned = new BitSet(PORT_COUNT);
+
+    /**
+     * Journal of the allocations on this node, or null until the first allocation.
+     */
+    private AllocationJournal journal;
+
+    /**
+     * File of {@link #journal}, or null if not running inside Jenkins or if the journal could not be written.
+     */
+    private File journalFile;
+
+    /**
+     * Whether the allocations recorded in the journal have been taken back; see {@link #restore()}.
+     */
+    private volatile boolean restored;
+
+    /**
+     * Managers by raw node name. A manager lives as long as its node does;
+     * see {@link ComputerListenerImpl}.
+     */
+    private static final ConcurrentMap<String,PortAllocationManager> INSTANCES =
+            new ConcurrentHashMap<String,PortAllocationManager>();
+
+    private static final Random rnd = new Random();
+
+    private static final AllocationMetrics METRICS = AllocationMetrics.INSTANCE;
+
+    /**
+     * If positive, ports probed on the agent stay bound there for up to this many milliseconds,
+     * until {@link #releaseLeases(int[])} is called, so that no other process can take them
+     * in the meantime. 0 disables the agent-side leases.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Tunable from the script console")
+    public static long LEASE_TIMEOUT = SystemProperties.getLong(PortAllocationManager.class.getName() + ".leaseTimeout", 0L);
+
+    /**
+     * Default of {@link #RANDOM_PORT_RANGE}, below the ephemeral ranges of Linux (32768-60999)
+     * and of Windows and macOS (49152-65535).
+     */
+    static final String DEFAULT_RANDOM_PORT_RANGE = "10000-32767";
+
+    /**
+     * Ports that random ports are picked from, or empty to let the OS pick them from its ephemeral range.
+     * The ports of the pools and the ephemeral range of the agent are left out, and the OS only picks
+     * a port when a few random candidates turned out to be taken.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Tunable from the script console")
+    public static String RANDOM_PORT_RANGE = SystemProperties.getString(PortAllocationManager.class.getName() + ".randomPortRange", DEFAULT_RANDOM_PORT_RANGE);
+
+    /**
+     * {@link #RANDOM_PORT_RANGE} as last parsed.
+     */
+    private static volatile RandomPortRange randomPortRange;
+
+    /**
+     * How {@link #allocatePortRange} chooses among the gaps that fit a range of consecutive ports:
+     * {@code first}, {@code best} or {@code random}.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Tunable from the script console")
+    public static String RANGE_FIT = SystemProperties.getString(PortAllocationManager.class.getName() + ".rangeFit", "random");
+
+    /**
+     * How many milliseconds a port that the node reported as taken is left out of port ranges.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Tunable from the script console")
+    public static long BUSY_PORT_TIMEOUT = SystemProperties.getLong(PortAllocationManager.class.getName() + ".busyPortTimeout", TimeUnit.MINUTES.toMillis(1));
+
+    /**
+     * How many milliseconds the list of ports bound on a Linux agent is reused for before being read again.
+     * 0 disables the listing, and ports are always probed by binding them.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Tunable from the script console")
+    public static long LISTENING_PORTS_TTL = SystemProperties.getLong(PortAllocationManager.class.getName() + ".listeningPortsTtl", 2000L);
+
+    /**
+     * How many milliseconds ports held by builds that did not survive a controller restart
+     * stay allocated before they are handed out again.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Tunable from the script console")
+    public static long ORPHAN_TIMEOUT = SystemProperties.getLong(PortAllocationManager.class.getName() + ".orphanTimeout", TimeUnit.MINUTES.toMillis(10));
+
+    private PortAllocationManager(String name, Computer node) {
+        this.name = name;
+        this.node = node;
+    }
+
+    /**
+     * Takes back the allocations recorded in the journal, the first time the manager is asked for.
+     * Ports of builds that are still running are given back to them, the others become orphans.
+     *
+     * <p>
+     * Done outside of {@link #INSTANCES} and of the constructor, as it maps the journal and loads builds.
+     */
+    private void restore() {
+        if (restored) {
+            return;
+        }
+        synchronized (this) {
+            if (restored) {
+                return;
+            }
+            restored = true;
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            if (jenkins == null) {
+                return;
+            }
+            journalFile = AllocationJournal.getFile(jenkins.getRootDir(), getNodeName());
+            if (!journalFile.exists() || getJournal() == null) {
+                return;
+            }
+            // the builds must be found whatever the caller may see
+            try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+                for (Map.Entry<Integer,String> e : journal.getLive().entrySet()) {
+                    int port = e.getKey();
+                    Run<?,?> run = null;
+                    try {
+                        run = Run.fromExternalizableId(e.getValue());
+                    } catch (RuntimeException x) {
+                        // malformed ID
+                        LOGGER.log(Level.FINE, "Failed to look up " + e.getValue(), x);
+                    }
+                    if (run != null && run.isBuilding()) {
+                        setOwner(port, run);
+                    } else {
+                        orphaned.set(port);
+                    }
+                    setUsed(port);
+                    free.remove(port);
+                }
+            }
+            if (!orphaned.isEmpty()) {
+                LOGGER.log(Level.INFO, "Holding {0} ports of builds interrupted by a restart on {1}",
+                        new Object[] {orphaned.cardinality(), getNodeName()});
+                Timer.get().schedule(new Runnable() {
+                    public void run() {
+                        releaseOrphans();
+                    }
+                }, ORPHAN_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private synchronized void releaseOrphans() {
+        for (int port = orphaned.nextSetBit(0); port >= 0; port = orphaned.nextSetBit(port + 1)) {
+            release(port);
+        }
+    }
+
+    /**
+     * Frees the ports held by builds that are no longer running, such as builds killed before
+     * they could tear down, and hands them over to whoever waits for them.
+     * Tentative reservations and orphans restored from the journal are left alone.
+     *
+     * @param run
+     *      only reclaim the ports of this build, or null to check all the builds
+     * @return the number of ports reclaimed
+     */
+    public synchronized int reap(Run run) {
+        long only = run == null ? 0 : BuildHandle.of(run);
+        List<Integer> leaked = new ArrayList<Integer>();
+        for (int port = used.nextSetBit(0); port >= 0; port = used.nextSetBit(port + 1)) {
+            long handle = getOwnerHandle(port);
+            if (handle == 0 || (run != null && handle != only) || reserved.get(port)) {
+                continue;
+            }
+            Run owner = liveOwners.get(handle).get();
+            if (owner == null || !owner.isBuilding()) {
+                leaked.add(port);
+            }
+        }
+        for (int port : leaked) {
+            release(port);
+        }
+        if (!leaked.isEmpty()) {
+            METRICS.reapedPorts.add(leaked.size());
+            LOGGER.log(Level.INFO, "Reclaimed ports {0} of finished builds on {1}",
+                    new Object[] {leaked, getNodeName()});
+        }
+        return leaked.size();
+    }
+
+    /**
+     * @deprecated use {@link #allocateRandom(Run, int)}
+     */
+    @Deprecated
+    public int allocateRandom(AbstractBuild owner, int prefPort) throws InterruptedException, IOException {
+        return allocateRandom((Run) owner, prefPort);
+    }
+
+    /**
+     * Allocates a random port on the Computer where the jobs gets executed.
+     *
+     * <p>
+     * If the preferred port is not available, assigns a random available port.
+     *
+     * @param prefPort
+     *      Preffered port. This method trys to assign this port, and upon failing, fall back to
+     *      assigning a random port.
+     */
+    public int allocateRandom(Run owner, int prefPort) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        try {
+            return doAllocateRandom(owner, prefPort);
+        } finally {
+            METRICS.randomPort.recordSince(start);
+        }
+    }
+
+    private int doAllocateRandom(Run owner, int prefPort) throws InterruptedException, IOException {
+        // try to allocate preferential port,
+        if (prefPort > 0 && prefPort < PORT_COUNT && reserve(prefPort, owner)) {
+            int[] port = {prefPort};
+            try {
+                bind(prefPort);
+                commit(port);
+                return prefPort;
+            } catch (PortUnavailableException ex) {
+                rollback(port);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                rollback(port);
+                throw e;
+            }
+        }
+
+        // if not available, assign a random port
+        for (int trynum = 0; trynum < MAX_TRIES; trynum++) {
+            int i = bind(0);
+            if (reserve(i, owner)) {
+                commit(new int[] {i});
+                return i;
+            }
+            // the node handed out a port that another build has been assigned; try again
+            releaseLeases(new int[] {i});
+        }
+        throw new IOException("Failed to allocate a random port");
+    }
+
+    /**
+     * Allocates the ports of several port types of a build at once.
+     *
+     * <p>
+     * {@code ports[i]} is either a fixed port, assigned as by {@link #allocate}, or 0 for a random port,
+     * assigned as by {@link #allocateRandom} with {@code prefPorts[i]} as the preferred port.
+     * Fixed ports are waited for in ascending order, so that two builds asking for the same ports cannot
+     * deadlock. The other ports are bound on the node in a single remote call, plus one more for each
+     * round of collisions with ports assigned concurrently. Either all ports are allocated, or none.
+     *
+     * @return the allocated ports, in the order requested
+     */
+    public int[] allocateAll(Run owner, int[] ports, int[] prefPorts) throws InterruptedException, IOException {
+        int[] allocated = new int[ports.length];
+        boolean success = false;
+        try {
+            int[] fixed = ports.clone();
+            Arrays.sort(fixed);
+            for (int i = 0; i < fixed.length; i++) {
+                if (fixed[i] == 0) {
+                    continue;
+                }
+                if (i > 0 && fixed[i] == fixed[i - 1]) {
+                    throw new IOException("Port " + fixed[i] + " is requested more than once");
+                }
+                allocated[indexOf(ports, fixed[i])] = allocate(owner, fixed[i]);
+            }
+
+            long start = System.nanoTime();
+            try {
+                allocateRandom(owner, allocated, prefPorts);
+            } finally {
+                METRICS.randomPort.recordSince(start);
+            }
+            commit(allocated);
+            success = true;
+            return allocated;
+        } finally {
+            if (!success) {
+                synchronized (this) {
+                    for (int port : allocated) {
+                        if (port > 0 && used.get(port)) {
+                            release(port);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the zero entries of {@code allocated} with reserved random ports, binding them on the node in batches.
+     */
+    private void allocateRandom(Run owner, int[] allocated, int[] prefPorts) throws InterruptedException, IOException {
+        int[] slots = new int[allocated.length];
+        int[] request = new int[allocated.length];
+        int n = 0;
+        synchronized (this) {
+            for (int i = 0; i < allocated.length; i++) {
+                if (allocated[i] != 0) {
+                    continue;
+                }
+                int prefPort = prefPorts[i];
+                if (prefPort > 0 && prefPort < PORT_COUNT && !used.get(prefPort)) {
+                    // reserve the preferred port, so that it is not taken while we check it
+                    take(prefPort, owner);
+                    reserved.set(prefPort);
+                    allocated[i] = prefPort;
+                } else {
+                    prefPort = 0;
+                }
+                slots[n] = i;
+                request[n++] = prefPort;
+            }
+        }
+
+        for (int trynum = 0; n > 0; trynum++) {
+            if (trynum == MAX_TRIES) {
+                throw new IOException("Failed to allocate a random port");
+            }
+            int[] bound = bindAll(Arrays.copyOf(request, n));
+            int[] conflicts = new int[n];
+            int pending = 0;
+            int c = 0;
+            synchronized (this) {
+                for (int k = 0; k < n; k++) {
+                    int i = slots[k];
+                    int port = bound[k];
+                    if (port == request[k]) {
+                        continue; // got the preferred port
+                    }
+                    if (request[k] > 0) {
+                        // the preferred port is taken on the node
+                        release(request[k]);
+                        allocated[i] = 0;
+                    }
+                    if (used.get(port)) {
+                        // the node handed out a port that another build has been assigned; try again
+                        conflicts[c++] = port;
+                        slots[pending] = i;
+                        request[pending++] = 0;
+                    } else {
+                        take(port, owner);
+                        reserved.set(port);
+                        allocated[i] = port;
+                    }
+                }
+            }
+            if (c > 0) {
+                releaseLeases(Arrays.copyOf(conflicts, c));
+            }
+            n = pending;
+        }
+    }
+
+    /**
+     * @deprecated use {@link #allocatePortRange(Run, int, int, int, boolean)}
+     */
+    @Deprecated
+    public int[] allocatePortRange(
+            final AbstractBuild owner,
+            int start, int end, int count, boolean isConsecutive)
+    throws InterruptedException, IOException {
+        return allocatePortRange((Run) owner, start, end, count, isConsecutive);
+    }
+
+    /**
+     * Allocate a continuous range of ports within specified limits.
+     * The caller is responsible for freeing the individual ports within
+     * the allocated range.
+     *
+     * <p>
+     * Candidates are picked among the free intervals of the node, and checked there in batches,
+     * so that one remote call covers a whole candidate window. Ports reported as taken are
+     * left out for a while, so each round is closer to success. The allocation fails when
+     * not enough free ports are left, or after {@link #MAX_TRIES} rounds.
+     *
+     * @param owner current build
+     * @param start first port in the range of allowable ports
+     * @param end the last entry in the range of allowable ports
+     * @param count the number of ports to allocate
+     * @param isConsecutive true if the allocated ports should be consecutive
+     * @return the ports allocated
+     * @throws InterruptedException if the allocation was interrupted
+     * @throws IOException if the allocation failed
+     */
+    public int[] allocatePortRange(
+            final Run owner,
+            int start, int end, int count, boolean isConsecutive)
+    throws InterruptedException, IOException {
+        if (count <= 0 || start <= 0 || end >= PORT_COUNT || end - start + 1 < count) {
+            throw new IOException("Cannot allocate " + count + " ports between " + start + " and " + end);
+        }
+        long startTime = System.nanoTime();
+        try {
+            int[] allocated = isConsecutive
+                    ? allocateConsecutive(owner, start, end, count)
+                    : allocateScattered(owner, start, end, count);
+            if (allocated == null) {
+                METRICS.rangeFailures.increment();
+                throw new IOException("Failed to allocate port range");
+            }
+            return allocated;
+        } finally {
+            METRICS.portRange.recordSince(startTime);
+        }
+    }
+
+    /**
+     * Looks for a window of {@code count} ports in {@code [start,end]} that is free in the
+     * bookkeeping, as chosen by {@link #RANGE_FIT}, and checks it on the node.
+     *
+     * @return the allocated ports, or null if no window was free within {@link #MAX_TRIES} rounds
+     */
+    private int[] allocateConsecutive(Run owner, int start, int end, int count)
+            throws InterruptedException, IOException {
+        boolean scanned = scanBoundPorts();
+        for (int trynum = 0; trynum < MAX_TRIES; trynum++) {
+            if (trynum > 0) {
+                METRICS.rangeRetries.increment();
+            }
+            int[] candidates;
+            synchronized (this) {
+                expireBusyPorts();
+                int first = free.find(start, end, count, getRangeFit(), rnd);
+                if (first < 0) {
+                    return null;
+                }
+                candidates = new int[count];
+                for (int i = 0; i < count; i++) {
+                    candidates[i] = first + i;
+                }
+                reserve(candidates, owner);
+            }
 
+            int[] taken = scanned && LEASE_TIMEOUT <= 0 ? new int[0] : probeReserved(candidates, true);
+            if (taken.length == 0) {
+                commit(candidates);
+                return candidates;
+            }
+            markBusy(taken);
+            rollback(candidates);
+        }
+        return null;
+    }
+
+    /**
+     * Picks random ports from {@code [start,end]} and checks all outstanding candidates
+     * in one remote call per round.
+     *
+     * @return the allocated ports, or null if not enough ports were free within {@link #MAX_TRIES} rounds
+     */
+    private int[] allocateScattered(Run owner, int start, int end, int count)
+            throws InterruptedException, IOException {
+        int[] allocated = new int[count];
+        int n = 0;
+        boolean scanned = scanBoundPorts();
+
+        for (int trynum = 0; n < count && trynum < MAX_TRIES; trynum++) {
+            if (trynum > 0) {
+                METRICS.rangeRetries.increment();
+            }
+            int[] candidates;
+            synchronized (this) {
+                expireBusyPorts();
+                candidates = free.sample(start, end, count - n, rnd);
+                if (candidates == null) {
+                    break;
+                }
+                reserve(candidates, owner);
+            }
+
+            int[] taken;
+            try {
+                taken = scanned && LEASE_TIMEOUT <= 0 ? new int[0] : probeReserved(candidates, false);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                for (int i = 0; i < n; i++) {
+                    free(allocated[i]);
+                }
+                throw e;
+            }
+            int[] ok = new int[candidates.length - taken.length];
+            int f = 0;
+            for (int port : candidates) {
+                if (indexOf(taken, port) < 0) {
+                    ok[f++] = port;
+                    allocated[n++] = port;
+                }
+            }
+            commit(ok);
+            markBusy(taken);
+            rollback(taken);
+        }
+
+        if (n < count) {
+            // Free off allocated ports, the range as a whole failed
+            for (int i = 0; i < n; i++) {
+                free(allocated[i]);
+            }
+            return null;
+        }
+        return allocated;
+    }
+
+    /**
+     * Lists the ports bound on the node, unless that was done less than {@link #LISTENING_PORTS_TTL} ago,
+     * and leaves them out of port ranges and pools until the next listing.
+     * Must be called without holding the lock.
+     *
+     * @return true if the bound ports of the node are known, so that candidates need not be probed
+     */
+    private boolean scanBoundPorts() throws InterruptedException {
+        long ttl = TimeUnit.MILLISECONDS.toNanos(LISTENING_PORTS_TTL);
+        synchronized (this) {
+            if (scanUnsupported || ttl <= 0) {
+                return false;
+            }
+            if (scanned != 0 && System.nanoTime() - scanned < ttl) {
+                return true;
+            }
+        }
+        VirtualChannel channel = node.getChannel();
+        if (channel == null) {
+            return false; // offline
+        }
+        long start = System.nanoTime();
+        long[] bits;
+        try {
+            bits = channel.call(new ListeningPortsTask());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to list the bound ports of " + getNodeName(), e);
+            return false;
+        } finally {
+            METRICS.remoteProbe.recordSince(start);
+        }
+        synchronized (this) {
+            if (bits == null) {
+                scanUnsupported = true;
+                return false;
+            }
+            scanned = System.nanoTime();
+            BitSet bound = BitSet.valueOf(bits);
+            bound.clear(0);
+            bound.andNot(used); // bound by our own builds
+            markBusy(bound.stream().toArray(), LISTENING_PORTS_TTL);
+        }
+        return true;
+    }
+
+    /**
+     * Leaves ports that the node reported as taken out of port ranges for {@link #BUSY_PORT_TIMEOUT}.
+     */
+    private void markBusy(int[] ports) {
+        markBusy(ports, BUSY_PORT_TIMEOUT);
+    }
+
+    private synchronized void markBusy(int[] ports, long timeoutMillis) {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (int port : ports) {
+            busy.set(port);
+            free.remove(port);
+            busyUntil.put(port, until);
+            busyExpiry.add(new BusyPort(port, until));
+        }
+    }
+
+    /**
+     * Puts the {@link #busy} ports whose time is up back into circulation. Must be called with the lock held.
+     */
+    private void expireBusyPorts() {
+        long now = System.nanoTime();
+        BusyPort head;
+        while ((head = busyExpiry.peek()) != null && head.until - now <= 0) {
+            busyExpiry.poll();
+            Long until = busyUntil.get(head.port);
+            if (until == null || until != head.until) {
+                continue; // marked again since
+            }
+            busyUntil.remove(head.port);
+            busy.clear(head.port);
+            if (!used.get(head.port)) {
+                free.add(head.port);
+            }
+        }
+    }
+
+    /**
+     * Entry of {@link #busyExpiry}.
+     */
+    private static final class BusyPort implements Comparable<BusyPort> {
+        final int port;
+        final long until;
+
+        BusyPort(int port, long until) {
+            this.port = port;
+            this.until = until;
+        }
+
+        public int compareTo(BusyPort o) {
+            return Long.signum(until - o.until); // as nanoTime values may overflow
+        }
+    }
+
+    private static FreeIntervals.Fit getRangeFit() {
+        try {
+            return FreeIntervals.Fit.valueOf(RANGE_FIT.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Invalid range fit " + RANGE_FIT, e);
+            return FreeIntervals.Fit.RANDOM;
+        }
+    }
+
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @deprecated use {@link #allocate(Run, int)}
+     */
+    @Deprecated
+    public int allocate(AbstractBuild owner, int port) throws InterruptedException, IOException {
+        return allocate((Run) owner, port);
+    }
+
+    /**
+     * Assigns the requested port.
+     *
+     * This method blocks until the port becomes available.
+     * Builds waiting for the same port get it in arrival order, and freeing
+     * a port only wakes up the first build waiting for that port.
+     */
+    public int allocate(Run owner, int port) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        try {
+            await(allocateAsync(owner, port));
+        } finally {
+            // also the waits that end with the build aborted, which are the long ones
+            METRICS.fixedPort.recordSince(start);
+        }
+
+        /*
+        TODO:
+            despite the fact that the following commented out implementation is smarter,
+            I need to comment it out for the following reasons:
+
+            Often, a job that requires a particular port (let's say 8080) fails in the middle,
+            leaving behind a process that occupies the port. A typical defensive measure taken
+            to fight this is for the build to try to stop the server at the beginning.
+
+            While clunky, this technique is used frequently, and if this method blocks until
+            the port actually becomes available (not only in our book-keeping but also at OS level),
+            then such a run-away process will remain forever and thus the next build will
+            never happen.
+
+            This unfortunately doesn't protect us from a case where job X runs and dies, leaving
+            a server behind, then job Y comes in, looking for the same port, and fails.
+
+            We need to revisit this.
+         */
+//        while(true) {
+//            try {
+//                allocatePort(port);
+//                break;
+//            } catch (PortUnavailableException e) {
+//                // the requested port is not available right now.
+//                // the port might be blocked by a reason outside Hudson,
+//                // so we need to occasionally wake up to see if the port became available
+//                wait(10000);
+//            }
+//        }
+        return port;
+    }
+
+    /**
+     * Asynchronous version of {@link #allocate(Run, int)}.
+     *
+     * <p>
+     * Returns a future that is already completed if the port is free, or else completes when the port is
+     * handed over to the owner. The future completes while this manager is locked, so its dependents must
+     * run asynchronously. Withdraw the request with {@link #cancel(CompletableFuture)}.
+     */
+    public CompletableFuture<Integer> allocateAsync(Run owner, int port) throws IOException {
+        checkPort(port);
+        synchronized (this) {
+            if (!used.get(port)) {
+                take(port, owner);
+                return CompletableFuture.completedFuture(port);
+            }
+            PortWaiter waiter = new PortWaiter(owner);
+            ArrayDeque<PortWaiter> queue = portWaiters.get(port);
+            if (queue == null) {
+                queue = new ArrayDeque<PortWaiter>();
+                portWaiters.put(port, queue);
+            }
+            queue.add(waiter);
+            return waiter;
+        }
+    }
+
+    /**
+     * Assigns a free port from the given pool.
+     *
+     * <p>
+     * If the pool is exhausted, this method blocks until a port of the pool is freed.
+     * Callers are served in arrival order.
+     */
+    public int allocateFromPool(Run owner, Pool pool) throws InterruptedException {
+        return allocateFromPool(owner, pool, 1, false)[0];
+    }
+
+    /**
+     * Assigns {@code count} free ports from the given pool, all at once.
+     *
+     * <p>
+     * If the pool does not have enough free ports, this method blocks until it does, without holding
+     * any of them meanwhile. Callers are served strictly in arrival order: a build asking for
+     * few ports does not get ahead of one asking for many, so the latter is not starved.
+     *
+     * @param consecutive whether the ports must be consecutive
+     * @throws IllegalArgumentException if the pool could never satisfy the request
+     */
+    public int[] allocateFromPool(Run owner, Pool pool, int count, boolean consecutive) throws InterruptedException {
+        scanBoundPorts();
+        return await(allocateFromPoolAsync(owner, pool, count, consecutive));
+    }
+
+    /**
+     * Asynchronous version of {@link #allocateFromPool(Run, Pool, int, boolean)}, with the same contract
+     * as {@link #allocateAsync(Run, int)}.
+     */
+    public synchronized CompletableFuture<int[]> allocateFromPoolAsync(Run owner, final Pool pool, int count, boolean consecutive) {
+        PoolState state = getPoolState(pool);
+        if (count < 1 || count > state.size
+                || consecutive && findRun(state.nonMembers(), 1, count) < 0) {
+            throw new IllegalArgumentException("Pool " + pool.name + " does not have " + count
+                    + (consecutive ? " consecutive" : "") + " ports");
+        }
+        PoolLease lease = new PoolLease(owner, count, consecutive);
+        state.addWaiter(lease);
+        expireBusyPorts();
+        serve(state);
+        if (lease.isDone()) {
+            METRICS.poolWait.record(0);
+            return lease;
+        }
+        final long waitStart = System.nanoTime();
+        lease.whenComplete(new BiConsumer<int[],Throwable>() {
+            public void accept(int[] ports, Throwable cancelled) {
+                long waited = System.nanoTime() - waitStart;
+                METRICS.poolWait.record(waited);
+                synchronized (PortAllocationManager.this) {
+                    getPoolState(pool).recordWait(waited);
+                }
+            }
+        });
+        return lease;
+    }
+
+    /**
+     * Withdraws a request made through {@link #allocateAsync} or {@link #allocateFromPoolAsync}.
+     * If the ports have been handed over in the meantime, they are freed again.
+     */
+    public synchronized void cancel(CompletableFuture<?> request) {
+        if (request.cancel(false)) {
+            for (Iterator<ArrayDeque<PortWaiter>> it = portWaiters.values().iterator(); it.hasNext();) {
+                ArrayDeque<PortWaiter> queue = it.next();
+                if (queue.remove(request) && queue.isEmpty()) {
+                    it.remove();
+                }
+            }
+            for (PoolState state : pools.values()) {
+                if (state.removeWaiter(request)) {
+                    // the builds behind it may fit now
+                    serve(state);
+                }
+            }
+        } else if (!request.isCompletedExceptionally()) {
+            Object granted = request.join();
+            if (granted instanceof int[]) {
+                for (int port : (int[]) granted) {
+                    free(port);
+                }
+            } else {
+                free((Integer) granted);
+            }
+        }
+    }
+
+    /**
+     * Blocks until the request completes, withdrawing it if interrupted.
+     */
+    private <T> T await(CompletableFuture<T> request) throws InterruptedException {
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            cancel(request);
+            throw e;
+        } catch (ExecutionException e) {
+            throw new AssertionError(e); // never completed exceptionally
+        }
+    }
+
+    /**
+     * Returns whether {@code count} ports of the pool can be allocated on this node right now
+     * without waiting, leaving the builds already waiting for the pool served first.
+     *
+     * <p>
+     * Does not wait for the lock, as it is called by the queue. Returns true if the pool
+     * has not been used on this node since it was last defined, as nothing is known about it yet.
+     */
+    public boolean hasFreePoolPorts(Pool pool, int count) {
+        PoolState state = pools.get(pool.name);
+        return state == null || state.pool != pool || state.available() >= count;
+    }
+
+    /**
+     * Returns how long builds have waited for a port of the given pool on this node, in total.
+     */
+    public synchronized long getPoolWaitMillis(String poolName) {
+        PoolState state = pools.get(poolName);
+        return state == null ? 0 : TimeUnit.NANOSECONDS.toMillis(state.waitNanos);
+    }
+
+    /**
+     * Returns the free list of the pool, (re)building it when the pool definition has changed.
+     * Must be called with the lock held.
+     */
+    private PoolState getPoolState(Pool pool) {
+        PoolState state = pools.get(pool.name);
+        if (state == null || state.pool != pool) {
+            PoolState old = state;
+            state = new PoolState(pool, used);
+            if (old != null) {
+                for (PoolLease lease : old.waiters) {
+                    state.addWaiter(lease);
+                }
+                state.waitNanos = old.waitNanos;
+            }
+            pools.put(pool.name, state);
+
+            // the new definition may contain free ports for those already waiting
+            serve(state);
+        }
+        return state;
+    }
+
+    /**
+     * Grants ports to the builds waiting for the pool, in arrival order, for as long as
+     * the first one in line can be served. Must be called with the lock held.
+     */
+    private void serve(PoolState state) {
+        PoolLease head;
+        while ((head = state.waiters.peek()) != null) {
+            if (head.isDone()) {
+                state.pollWaiter(); // withdrawn
+                continue;
+            }
+            int[] ports = state.pick(head.count, head.consecutive, used, busy);
+            if (ports == null) {
+                return; // the others wait behind it
+            }
+            state.pollWaiter();
+            if (head.grant(ports)) {
+                for (int port : ports) {
+                    take(port, head.owner);
+                }
+            } else {
+                for (int port : ports) {
+                    state.addFree(port);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the first port of {@code count} consecutive ports clear in {@code taken}, starting
+     * the search at {@code from}; or -1.
+     */
+    static int findRun(BitSet taken, int from, int count) {
+        int first = taken.nextClearBit(from);
+        while (first + count <= PORT_COUNT) {
+            int next = taken.nextSetBit(first);
+            if (next < 0 || next >= first + count) {
+                return first;
+            }
+            first = taken.nextClearBit(next);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether the port is free in the book-keeping. Does not wait for the lock,
+     * so the answer may already be out of date when allocations are going on.
+     */
+	public boolean isFree(int port) {
+		return port < 0 || port >= PORT_COUNT || (occupancy.get(port >>> 6) & 1L << port) == 0;
+	}
+
+    /**
+     * Describes the build that uses the port, or returns null if the port is free or its owner unknown.
+     * Does not wait for the lock.
+     */
+    public String getOwner(int port) {
+        long handle = port < 0 || port >= PORT_COUNT ? 0 : getOwnerHandle(port);
+        return handle == 0 ? null : BuildHandle.toString(handle);
+    }
+
+    /**
+     * Lists the ports in use on this node, with the builds that use them; null for owners that are unknown.
+     * Does not wait for the lock, so allocations going on meanwhile may or may not show up.
+     */
+    public SortedMap<Integer,String> getAllocations() {
+        SortedMap<Integer,String> allocations = new TreeMap<Integer,String>();
+        for (int w = 0; w < occupancy.length(); w++) {
+            long word = occupancy.get(w);
+            while (word != 0) {
+                int port = w * 64 + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                allocations.put(port, getOwner(port));
+            }
+        }
+        return allocations;
+    }
+
+    public static PortAllocationManager getManager(final Computer node) {
+        String name = node.getName() == null ? "" : node.getName();
+        PortAllocationManager pam = INSTANCES.get(name);
+        if (pam == null) {
+            pam = INSTANCES.computeIfAbsent(name, new Function<String,PortAllocationManager>() {
+                public PortAllocationManager apply(String name) {
+                    return new PortAllocationManager(name, node);
+                }
+            });
+        }
+        if (pam.node != node) {
+            pam.node = node;
+        }
+        pam.restore();
+        return pam;
+    }
+
+    /**
+     * Returns the manager of the node if it already has one, or null. Unlike {@link #getManager(Computer)},
+     * never creates a manager, so it is safe to call for every node with the queue locked.
+     */
+    static PortAllocationManager getExistingManager(Computer node) {
+        return INSTANCES.get(node.getName() == null ? "" : node.getName());
+    }
+
+    /**
+     * Returns the managers of all nodes that currently have one.
+     */
+    static List<PortAllocationManager> getManagers() {
+        return new ArrayList<PortAllocationManager>(INSTANCES.values());
+    }
+
+    /**
+     * Forgets the manager of a node that has been removed, and deletes its journal.
+     */
+    static void remove(String name) {
+        PortAllocationManager pam = INSTANCES.remove(name);
+        if (pam != null) {
+            synchronized (pam) {
+                if (pam.journal != null) {
+                    try {
+                        pam.journal.close();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to close the allocation journal of " + pam.getNodeName(), e);
+                    }
+                    pam.journal = null;
+                }
+                if (pam.journalFile != null) {
+                    if (!pam.journalFile.delete() && pam.journalFile.exists()) {
+                        LOGGER.log(Level.WARNING, "Failed to delete the allocation journal " + pam.journalFile);
+                    }
+                    pam.journalFile = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the managers in step with the nodes: a manager follows its node to the new computer
+     * created on reconnect or reconfiguration, and goes away with the node.
+     */
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            PortAllocationManager pam = INSTANCES.get(c.getName() == null ? "" : c.getName());
+            if (pam != null) {
+                pam.node = c;
+                synchronized (pam) {
+                    // the agent may run somewhere else now
+                    pam.scanned = 0;
+                    pam.scanUnsupported = false;
+                }
+            }
+        }
+
+        @Override
+        public void onConfigurationChange() {
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            if (jenkins == null) {
+                return;
+            }
+            for (String name : INSTANCES.keySet()) {
+                if (!name.isEmpty() && jenkins.getNode(name) == null) {
+                    remove(name);
+                }
+            }
+            // also the nodes removed while the controller was down
+            Set<String> names = new HashSet<String>();
+            names.add(getNodeName(""));
+            for (Node n : jenkins.getNodes()) {
+                names.add(getNodeName(n.getNodeName()));
+            }
+            PreferredPortIndex.get().retainNodes(names);
+        }
+    }
+
+    /**
+     * Name of the node, or {@code (built-in)} for the controller.
+     */
+    public String getNodeName() {
+        return getNodeName(name);
+    }
+
+    /**
+     * Name of a node as shown by {@link #getNodeName()}, given its {@link Computer#getName() raw name}.
+     */
+    static String getNodeName(String name) {
+        return name == null || name.isEmpty() ? "(built-in)" : name;
+    }
+
+    /**
+     * Returns the number of ports recorded as used on this node, including tentative reservations.
+     * Does not wait for the lock.
+     */
+    public int getPortsInUse() {
+        int n = 0;
+        for (int w = 0; w < occupancy.length(); w++) {
+            n += Long.bitCount(occupancy.get(w));
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of ports in use on this node for each pool that has been used here.
+     * Does not wait for the lock.
+     */
+    public Map<String,Integer> getPoolPortsInUse() {
+        Map<String,Integer> inUse = new TreeMap<String,Integer>();
+        for (PoolState state : pools.values()) {
+            inUse.put(state.pool.name, state.inUse.get());
+        }
+        return inUse;
+    }
+
+    /**
+     * Closes the agent-side leases on the given ports, if any, so that the build can bind them.
+     * Only makes a remote call if one of the ports is actually leased.
+     */
+    public void releaseLeases(int[] ports) throws InterruptedException, IOException {
+        int[] release = new int[ports.length];
+        int n = 0;
+        synchronized (this) {
+            for (int port : ports) {
+                if (port > 0 && port < PORT_COUNT && leased.get(port)) {
+                    leased.clear(port);
+                    release[n++] = port;
+                }
+            }
+        }
+        if (n > 0) {
+            long start = System.nanoTime();
+            try {
+                node.getChannel().call(new ReleaseTask(Arrays.copyOf(release, n)));
+            } finally {
+                METRICS.remoteProbe.recordSince(start);
+            }
+        }
+    }
+
+    public synchronized void free(int n) {
+        if (n >= 0 && used.get(n)) {
+            release(n); // wake up anyone who's waiting for this port
+        }
+    }
+
+
+//    private boolean isPortInUse(final int port) throws InterruptedException {
+//        try {
+//            return node.getChannel().call(new Callable<Boolean, IOException>() {
+//                public Boolean call() throws IOException {
+//                    new ServerSocket(port).close();
+//                    return true;
+//                }
+//            });
+//        } catch (IOException e) {
+//            return false;
+//        }
+//    }
+
+    /**
+     * Records the port as used by the given build.
+     */
+    private void take(int port, Run owner) {
+        // owner first, so that lock-free readers who see the port used also see who uses it
+        setOwner(port, owner);
+        setUsed(port);
+        free.remove(port);
+        for (PoolState state : pools.values()) {
+            if (state.members.get(port)) {
+                state.inUse.incrementAndGet();
+            }
+        }
+        if (getJournal() != null) {
+            try {
+                journal.allocated(port, owner.getExternalizableId());
+            } catch (IOException e) {
+                closeJournal(e);
+            }
+        }
+    }
+
+    /**
+     * Marks the port as used in {@link #used} and {@link #occupancy}. Must be called with the lock held.
+     */
+    private void setUsed(int port) {
+        used.set(port);
+        occupancy.set(port >>> 6, occupancy.get(port >>> 6) | 1L << port);
+    }
+
+    /**
+     * Marks the port as free in {@link #used} and {@link #occupancy}. Must be called with the lock held.
+     */
+    private void clearUsed(int port) {
+        used.clear(port);
+        occupancy.set(port >>> 6, occupancy.get(port >>> 6) & ~(1L << port));
+    }
+
+    private long getOwnerHandle(int port) {
+        AtomicLongArray page = owners.get(port / PAGE_SIZE);
+        return page == null ? 0 : page.get(port % PAGE_SIZE);
+    }
+
+    private void setOwner(int port, Run owner) {
+        long handle = BuildHandle.of(owner);
+        AtomicLongArray page = owners.get(port / PAGE_SIZE);
+        if (page == null) {
+            page = new AtomicLongArray(PAGE_SIZE);
+            owners.set(port / PAGE_SIZE, page);
+        }
+        page.set(port % PAGE_SIZE, handle);
+        OwnerRef ref = liveOwners.get(handle);
+        if (ref == null || ref.get() == null) {
+            // the build was collected while holding ports, and has been loaded again
+            ref = new OwnerRef(owner, ref == null ? 0 : ref.ports);
+            liveOwners.put(handle, ref);
+        }
+        ref.ports++;
+    }
+
+    private void clearOwner(int port) {
+        long handle = getOwnerHandle(port);
+        if (handle == 0) {
+            return;
+        }
+        owners.get(port / PAGE_SIZE).set(port % PAGE_SIZE, 0);
+        OwnerRef ref = liveOwners.get(handle);
+        if (--ref.ports == 0) {
+            liveOwners.remove(handle);
+        }
+    }
+
+    /**
+     * Weak reference to a build that owns ports, with the number of them.
+     */
+    private static final class OwnerRef extends WeakReference<Run> {
+        int ports;
+
+        OwnerRef(Run owner, int ports) {
+            super(owner);
+            this.ports = ports;
+        }
+    }
+
+    /**
+     * Tentatively reserves the port for the owner if it is free in the book-keeping.
+     *
+     * @return false if the port is already in use or reserved
+     */
+    private synchronized boolean reserve(int port, Run owner) {
+        if (used.get(port))
+            return false;
+        take(port, owner);
+        reserved.set(port);
+        return true;
+    }
+
+    /**
+     * Tentatively reserves ports that the caller has found free while holding the lock.
+     */
+    private synchronized void reserve(int[] ports, Run owner) {
+        for (int port : ports) {
+            take(port, owner);
+            reserved.set(port);
+        }
+    }
+
+    /**
+     * Turns reservations into regular allocations.
+     */
+    private synchronized void commit(int[] ports) {
+        for (int port : ports) {
+            reserved.clear(port);
+        }
+    }
+
+    /**
+     * Drops reservations, handing the ports over to anyone who's waiting for them.
+     */
+    private synchronized void rollback(int[] ports) {
+        for (int port : ports) {
+            if (reserved.get(port)) {
+                release(port);
+            }
+        }
+    }
+
+    /**
+     * Clears the port from the book-keeping, then hands it over to the first build
+     * waiting for this very port, or else to the first build waiting for it in a pool,
+     * or else puts it back on the free lists.
+     * Must be called with the lock held.
+     */
+    private void release(int port) {
+        clearUsed(port);
+        if (!busy.get(port)) {
+            free.add(port);
+        }
+        reserved.clear(port);
+        orphaned.clear(port);
+        clearOwner(port);
+        if (journal != null) {
+            try {
+                journal.freed(port);
+            } catch (IOException e) {
+                closeJournal(e);
+            }
+        }
+
+        // before any hand over, which takes the port again through take()
+        for (PoolState state : pools.values()) {
+            if (state.members.get(port)) {
+                state.inUse.decrementAndGet();
+            }
+        }
+
+        ArrayDeque<PortWaiter> queue = portWaiters.get(port);
+        while (queue != null) {
+            PortWaiter waiter = queue.poll();
+            if (queue.isEmpty()) {
+                portWaiters.remove(port);
+                queue = null;
+            }
+            if (handOver(waiter, port)) {
+                return;
+            }
+        }
+
+        for (PoolState state : pools.values()) {
+            if (!state.members.get(port)) {
+                continue;
+            }
+            state.addFree(port);
+            serve(state);
+            if (!used.get(port)) {
+                // builds kept in the queue by PoolCapacityDispatcher may go now
+                scheduleMaintenance();
+            }
+        }
+    }
+
+    /**
+     * Asks the queue to reconsider the builds it holds back.
+     * Does not block, so it is safe to call with the lock held.
+     */
+    private void scheduleMaintenance() {
+        if (Jenkins.getInstanceOrNull() != null) {
+            Queue.getInstance().scheduleMaintenance();
+        }
+    }
 
-/**
- * Manages ports in use.
- *
- * @author Rama Pulavarthi
- * @author Kohsuke Kawaguchi
- */
-public final class PortAllocationManager {
-    private final Computer node;
+    /**
+     * Gives a free port to a waiter, unless it has been cancelled.
+     * Must be called with the lock held.
+     */
+    private boolean handOver(PortWaiter waiter, int port) {
+        if (!waiter.grant(port)) {
+            return false;
+        }
+        take(port, waiter.owner);
+        return true;
+    }
 
-    /** Maximum number of tries to allocate a specific port range. */
-    private static final int MAX_TRIES = 100;
+    /**
+     * Returns the journal, opening or creating it if needed, or null if there is none.
+     * Must be called with the lock held.
+     */
+    private AllocationJournal getJournal() {
+        if (journal == null && journalFile != null) {
+            try {
+                journal = AllocationJournal.open(journalFile);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to open the allocation journal " + journalFile + ", disabling it", e);
+                journalFile = null;
+            }
+        }
+        return journal;
+    }
 
     /**
-     * Ports currently in use, to the build that uses it.
+     * Stops journaling after a write failure; allocation goes on without it.
      */
-    private final Map<Integer,AbstractBuild> ports = new HashMap<Integer,AbstractBuild>();
+    private void closeJournal(IOException cause) {
+        LOGGER.log(Level.WARNING, "Failed to write the allocation journal " + journal + ", disabling it", cause);
+        try {
+            journal.close();
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+        journal = null;
+        journalFile = null;
+    }
 
-    private static final Map<Computer, WeakReference<PortAllocationManager>> INSTANCES =
-            new WeakHashMap<Computer, WeakReference<PortAllocationManager>>();
+    private static void checkPort(int port) throws IOException {
+        if (port <= 0 || port >= PORT_COUNT) {
+            throw new IOException("Invalid port number: " + port);
+        }
+    }
 
-    private static final Random rnd = new Random();
+    /**
+     * Returns the ports to pick random ports from, without the ports of the pools, or null to let the OS pick them.
+     * Only parsed again when the setting or the pools change.
+     */
+    private static PortRangeList getRandomPortRange() {
+        String spec = RANDOM_PORT_RANGE;
+        if (spec == null || spec.trim().isEmpty()) {
+            return null;
+        }
+        Pool[] pools = Jenkins.getInstanceOrNull() == null ? new Pool[0] : PortAllocator.DESCRIPTOR.getPools();
+        RandomPortRange r = randomPortRange;
+        if (r == null || !r.spec.equals(spec) || r.pools != pools) {
+            PortRangeList range;
+            try {
+                range = PortRangeList.parse(spec);
+                for (Pool pool : pools) {
+                    range = range.without(pool.getPortRanges());
+                }
+            } catch (IllegalArgumentException e) {
+                LOGGER.log(Level.WARNING, "Invalid random port range " + spec, e);
+                range = null;
+            }
+            randomPortRange = r = new RandomPortRange(spec, pools, range);
+        }
+        return r.range;
+    }
 
-    private PortAllocationManager(Computer node) {
-        this.node = node;
+    /**
+     * Parsed {@link #RANDOM_PORT_RANGE}, with the pools it was computed for.
+     */
+    private static final class RandomPortRange {
+        final String spec;
+        final Pool[] pools;
+        final PortRangeList range;
+
+        RandomPortRange(String spec, Pool[] pools, PortRangeList range) {
+            this.spec = spec;
+            this.pools = pools;
+            this.range = range;
+        }
     }
 
     /**
-     * Allocates a random port on the Computer where the jobs gets executed.
-     *
-     * <p>
-     * If the preferred port is not available, assigns a random available port.
+     * Binds the port on the node to see whether it is available.
+     * Must be called without holding the lock of this object.
      *
-     * @param prefPort
-     *      Preffered port. This method trys to assign this port, and upon failing, fall back to
-     *      assigning a random port.
+     * @param port 0 to assign a free port
+     * @return port that gets assigned
+     * @throws PortUnavailableException
+     *      If the specified port is not available
      */
-    public synchronized int allocateRandom(AbstractBuild owner, int prefPort) throws InterruptedException, IOException {
+    private int bind(final int port) throws InterruptedException, IOException {
+        long lease = LEASE_TIMEOUT;
+        long start = System.nanoTime();
         int i;
         try {
-            // try to allocate preferential port,
-            i = allocatePort(prefPort);
-        } catch (PortUnavailableException ex) {
-            // if not available, assign a random port
-            i = allocatePort(0);
+            i = node.getChannel().call(new AllocateTask(port, lease, getRandomPortRange()));
+        } finally {
+            METRICS.remoteProbe.recordSince(start);
+            METRICS.probedPorts.increment();
+        }
+        if (lease > 0) {
+            synchronized (this) {
+                leased.set(i);
+            }
         }
-        ports.put(i,owner);
         return i;
     }
 
     /**
-     * Allocate a continuous range of ports within specified limits.
-     * The caller is responsible for freeing the individual ports within
-     * the allocated range.
-     * @param owner current build
-     * @param start first port in the range of allowable ports
-     * @param end the last entry in the range of allowable ports
-     * @param count the number of ports to allocate
-     * @param isConsecutive true if the allocated ports should be consecutive
-     * @return the ports allocated
-     * @throws InterruptedException if the allocation was interrupted
-     * @throws IOException if the allocation failed
+     * Binds ports on the node in a single remote call, without holding the lock of this object.
+     *
+     * @param ports ports to try, or 0 for any free port
+     * @return the ports bound, in the same order; a taken port is replaced by a free one
      */
-    public int[] allocatePortRange(
-            final AbstractBuild owner,
-            int start, int end, int count, boolean isConsecutive)
-    throws InterruptedException, IOException {
-        int[] allocated = new int[count];
-
-        boolean allocationFailed = true;
-
-        // Attempt the whole allocation a few times using a brute force approach.
-        for (int trynum = 0; (allocationFailed && (trynum < MAX_TRIES)); trynum++) {
-            allocationFailed = false;
-
-            // Allocate all of the ports in the range
-            for (int offset = 0; offset < count; offset++) {
-
-                final int requestedPort;
-                if (!isConsecutive || (offset == 0)) {
-                    requestedPort = rnd.nextInt((end - start) - count) + start;
-                } else {
-                    requestedPort = allocated[0] + offset;
+    private int[] bindAll(int[] ports) throws InterruptedException, IOException {
+        long lease = LEASE_TIMEOUT;
+        long start = System.nanoTime();
+        int[] bound;
+        try {
+            bound = node.getChannel().call(new BatchTask(ports, lease, getRandomPortRange()));
+        } finally {
+            METRICS.remoteProbe.recordSince(start);
+            METRICS.probedPorts.add(ports.length);
+        }
+        if (lease > 0) {
+            synchronized (this) {
+                for (int port : bound) {
+                    leased.set(port);
                 }
-                try {
-                    final int i;
-                    synchronized (this) {
-                        i = allocatePort(requestedPort);
-                        ports.put(i, owner);
-                    }
-                    allocated[offset] = i;
-                } catch (PortUnavailableException ex) {
-                    // Did not get requested port
-                    allocationFailed = true;
-                    // Free off allocated ports ready to try again
-                    for (int freeOffset = offset - 1; freeOffset >= 0; freeOffset--) {
-                        free(allocated[freeOffset]);
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * Checks all the given reserved ports on the node in a single remote call,
+     * without holding the lock of this object. The reservations are rolled back
+     * if the check itself fails.
+     *
+     * @param allOrNothing
+     *      if true, no port is leased on the agent unless all of them are free
+     * @return the ports among {@code candidates} that could not be bound
+     */
+    private int[] probeReserved(int[] candidates, boolean allOrNothing) throws InterruptedException, IOException {
+        long lease = LEASE_TIMEOUT;
+        long start = System.nanoTime();
+        int[] busy;
+        try {
+            busy = node.getChannel().call(new ProbeTask(candidates, lease, allOrNothing));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            rollback(candidates);
+            throw e;
+        } finally {
+            METRICS.remoteProbe.recordSince(start);
+            METRICS.probedPorts.add(candidates.length);
+        }
+        if (lease > 0 && !(allOrNothing && busy.length > 0)) {
+            synchronized (this) {
+                for (int port : candidates) {
+                    if (indexOf(busy, port) < 0) {
+                        leased.set(port);
                     }
-                    // Try again from the beginning.
-                    break;
                 }
             }
         }
-        if (allocationFailed) {
-            throw new IOException("Failed to allocate port range");
-        }
-        return allocated;
+        return busy;
     }
 
     /**
-     * Assigns the requested port.
-     *
-     * This method blocks until the port becomes available.
+     * Free list and queue of waiting builds for one {@link Pool} on this node.
+     * Guarded by the lock of the owning {@link PortAllocationManager}.
      */
-    public synchronized int allocate(AbstractBuild owner, int port) throws InterruptedException, IOException {
-        while(ports.get(port)!=null)
-            wait();
+    private static final class PoolState {
+        /**
+         * Definition this state has been built from.
+         */
+        final Pool pool;
+        final BitSet members = new BitSet(PORT_COUNT);
 
-        /*
-        TODO:
-            despite the fact that the following commented out implementation is smarter,
-            I need to comment it out for the following reasons:
+        /**
+         * Ports believed to be free, in the order of the {@link Pool.Selection} of the pool.
+         * Ports taken through other means than the pool are dropped lazily when they come up.
+         */
+        private final FreePortList free;
 
-            Often, a job that requires a particular port (let's say 8080) fails in the middle,
-            leaving behind a process that occupies the port. A typical defensive measure taken
-            to fight this is for the build to try to stop the server at the beginning.
+        /**
+         * Builds waiting for ports, in arrival order.
+         */
+        final ArrayDeque<PoolLease> waiters = new ArrayDeque<PoolLease>();
 
-            While clunky, this technique is used frequently, and if this method blocks until
-            the port actually becomes available (not only in our book-keeping but also at OS level),
-            then such a run-away process will remain forever and thus the next build will
-            never happen.
+        /**
+         * Number of ports that {@link #waiters} ask for in total.
+         * Only written with the lock held, but can be read without it.
+         */
+        final AtomicInteger waiting = new AtomicInteger();
 
-            This unfortunately doesn't protect us from a case where job X runs and dies, leaving
-            a server behind, then job Y comes in, looking for the same port, and fails.
+        long waitNanos;
 
-            We need to revisit this.
+        /**
+         * Number of distinct ports in the pool.
          */
-//        while(true) {
-//            try {
-//                allocatePort(port);
-//                break;
-//            } catch (PortUnavailableException e) {
-//                // the requested port is not available right now.
-//                // the port might be blocked by a reason outside Hudson,
-//                // so we need to occasionally wake up to see if the port became available
-//                wait(10000);
-//            }
-//        }
-        ports.put(port,owner);
-        return port;
-    }
+        final int size;
 
-	public synchronized boolean isFree(int port) {
-		AbstractBuild owner = ports.get(port);
-		if (owner == null) {
-			return true;
-		}
-		return false;
-	}
+        /**
+         * Number of ports of the pool that are used, whatever they have been allocated through.
+         * Only written with the lock held, but can be read without it.
+         */
+        final AtomicInteger inUse = new AtomicInteger();
 
-    public static PortAllocationManager getManager(Computer node) {
-        PortAllocationManager pam;
-        WeakReference<PortAllocationManager> ref = INSTANCES.get(node);
-        if (ref != null) {
-            pam = ref.get();
-            if (pam != null)
-                return pam;
+        PoolState(Pool pool, BitSet used) {
+            this.pool = pool;
+            this.free = FreePortList.create(pool.getSelection(), pool.size());
+            for (int port : pool.getPortsAsInt()) {
+                members.set(port);
+                if (!used.get(port)) {
+                    addFree(port);
+                }
+            }
+            size = members.cardinality();
+            BitSet b = (BitSet) members.clone();
+            b.and(used);
+            inUse.set(b.cardinality());
         }
-        pam = new PortAllocationManager(node);
-        INSTANCES.put(node, new WeakReference<PortAllocationManager>(pam));
-        return pam;
-    }
 
-    public synchronized void free(int n) {
-        ports.remove(n);
-        notifyAll(); // wake up anyone who's waiting for this port
-    }
+        /**
+         * Number of ports that can be allocated without waiting, once those already waiting have been served.
+         */
+        int available() {
+            return size - inUse.get() - waiting.get();
+        }
 
+        void addWaiter(PoolLease lease) {
+            waiters.add(lease);
+            waiting.addAndGet(lease.count);
+        }
 
-//    private boolean isPortInUse(final int port) throws InterruptedException {
-//        try {
-//            return node.getChannel().call(new Callable<Boolean, IOException>() {
-//                public Boolean call() throws IOException {
-//                    new ServerSocket(port).close();
-//                    return true;
-//                }
-//            });
-//        } catch (IOException e) {
-//            return false;
-//        }
-//    }
+        PoolLease pollWaiter() {
+            PoolLease lease = waiters.poll();
+            if (lease != null) {
+                waiting.addAndGet(-lease.count);
+            }
+            return lease;
+        }
 
-    /**
-     * @param port 0 to assign a free port
-     * @return port that gets assigned
-     * @throws PortUnavailableException
-     *      If the specified port is not available
-     */
-    private int allocatePort(final int port) throws InterruptedException, IOException {
-        AbstractBuild owner = ports.get(port);
-        if(owner!=null)
-            throw new PortUnavailableException("Owned by "+owner);
+        boolean removeWaiter(Object request) {
+            for (Iterator<PoolLease> it = waiters.iterator(); it.hasNext();) {
+                PoolLease lease = it.next();
+                if (lease == request) {
+                    it.remove();
+                    waiting.addAndGet(-lease.count);
+                    return true;
+                }
+            }
+            return false;
+        }
 
-        return node.getChannel().call(new AllocateTask(port));
+        /**
+         * Ports that are not in the pool.
+         */
+        BitSet nonMembers() {
+            BitSet b = (BitSet) members.clone();
+            b.flip(0, PORT_COUNT);
+            return b;
+        }
+
+        /**
+         * Removes and returns {@code count} free ports, or null if there are not enough of them.
+         * The ports are not taken yet.
+         */
+        int[] pick(int count, boolean consecutive, BitSet used, BitSet busy) {
+            if (size - inUse.get() < count) {
+                return null;
+            }
+            int[] ports = new int[count];
+            if (consecutive) {
+                BitSet taken = nonMembers();
+                taken.or(used);
+                int first = findRun(taken, 1, count);
+                if (first < 0) {
+                    return null;
+                }
+                // these stay on the free list, and are dropped from it as used ones
+                for (int i = 0; i < count; i++) {
+                    ports[i] = first + i;
+                }
+                return ports;
+            }
+            for (int i = 0; i < count; i++) {
+                ports[i] = pollFree(used, busy);
+                if (ports[i] == 0) {
+                    for (int j = 0; j < i; j++) {
+                        addFree(ports[j]);
+                    }
+                    return null;
+                }
+            }
+            return ports;
+        }
+
+        void addFree(int port) {
+            free.add(port);
+        }
+
+        /**
+         * Removes and returns the next port on the free list that is not used, preferring
+         * ports that are not known to be taken on the node; or 0.
+         */
+        int pollFree(BitSet used, BitSet busy) {
+            List<Integer> skipped = new ArrayList<Integer>();
+            int port;
+            while ((port = free.poll()) != 0) {
+                if (used.get(port)) {
+                    continue;
+                }
+                if (busy.get(port)) {
+                    skipped.add(port);
+                    continue;
+                }
+                break;
+            }
+            if (port == 0 && !skipped.isEmpty()) {
+                port = skipped.remove(0);
+            }
+            // try the busy ones again last
+            for (int p : skipped) {
+                addFree(p);
+            }
+            return port;
+        }
+
+        void recordWait(long nanos) {
+            waitNanos += nanos;
+        }
     }
 
     static final class PortUnavailableException extends IOException {
@@ -231,23 +1820,40 @@ public final class PortAllocationManager {
         private static final long serialVersionUID = 1L;
     }
 
-    private static final class AllocateTask implements Callable<Integer,IOException> {
-        private final int port;
+    static final class AllocateTask implements Callable<Integer,IOException> {
+        final int port;
+        private final long lease;
+        private final PortRangeList range;
 
-        public AllocateTask(int port) {
+        /**
+         * @param range ports to pick from if {@code port} is 0, as by {@link RandomPorts#bind}; null to let the OS pick
+         */
+        public AllocateTask(int port, long lease, PortRangeList range) {
             this.port = port;
+            this.lease = lease;
+            this.range = range;
         }
 
         public Integer call() throws IOException {
-            ServerSocket server;
             try {
-                server = new ServerSocket(port);
+                return port == 0 ? RandomPorts.bind(range, new RandomPorts.Binder() {
+                    public int bind(int port) throws IOException {
+                        return AllocateTask.this.bind(port);
+                    }
+                }) : bind(port);
             } catch (IOException e) {
                 // fail to bind to the port
                 PortUnavailableException t = new PortUnavailableException(e.getLocalizedMessage());
                 t.initCause(e);
                 throw t;
             }
+        }
+
+        private int bind(int port) throws IOException {
+            if (lease > 0) {
+                return PortLeases.lease(port, lease);
+            }
+            ServerSocket server = new ServerSocket(port);
             int localPort = server.getLocalPort();
             server.close();
             return localPort;
@@ -260,4 +1866,152 @@ public final class PortAllocationManager {
 
         private static final long serialVersionUID = 1L;
     }
+
+    /**
+     * Tries to bind every given port on the node and reports those that are taken.
+     * Free ports are optionally kept bound through {@link PortLeases}.
+     */
+    static final class ProbeTask implements Callable<int[],IOException> {
+        final int[] ports;
+        private final long lease;
+        private final boolean allOrNothing;
+
+        ProbeTask(int[] ports, long lease, boolean allOrNothing) {
+            this.ports = ports;
+            this.lease = lease;
+            this.allOrNothing = allOrNothing;
+        }
+
+        public int[] call() throws IOException {
+            int[] busy = new int[ports.length];
+            int n = 0;
+            for (int port : ports) {
+                try {
+                    if (lease > 0) {
+                        PortLeases.lease(port, lease);
+                    } else {
+                        new ServerSocket(port).close();
+                    }
+                } catch (IOException e) {
+                    // fail to bind to the port
+                    busy[n++] = port;
+                }
+            }
+            if (lease > 0 && allOrNothing && n > 0) {
+                // only release what this probe has leased; busy ports may be leased to someone else
+                for (int port : ports) {
+                    if (indexOf(busy, port) < 0) {
+                        PortLeases.release(port);
+                    }
+                }
+            }
+            return Arrays.copyOf(busy, n);
+        }
+
+        @Override
+        public void checkRoles(final org.jenkinsci.remoting.RoleChecker checker) throws SecurityException {
+            checker.check(this, jenkins.security.Roles.SLAVE);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Binds a batch of ports on the node. Each port that is taken, or 0, is replaced by any free port.
+     * All the sockets stay open until the whole batch is bound, so that the ports are distinct,
+     * and are then either closed or kept bound through {@link PortLeases}.
+     */
+    static final class BatchTask implements Callable<int[],IOException> {
+        final int[] ports;
+        private final long lease;
+        private final PortRangeList range;
+
+        /**
+         * @param range ports to pick from for the ports that are 0 or taken, as by {@link RandomPorts#bind};
+         *      null to let the OS pick
+         */
+        BatchTask(int[] ports, long lease, PortRangeList range) {
+            this.ports = ports;
+            this.lease = lease;
+            this.range = range;
+        }
+
+        public int[] call() throws IOException {
+            int[] bound = new int[ports.length];
+            final List<ServerSocket> sockets = new ArrayList<ServerSocket>();
+            RandomPorts.Binder binder = new RandomPorts.Binder() {
+                public int bind(int port) throws IOException {
+                    return BatchTask.this.bind(port, sockets);
+                }
+            };
+            try {
+                for (int i = 0; i < ports.length; i++) {
+                    if (ports[i] > 0) {
+                        try {
+                            bound[i] = bind(ports[i], sockets);
+                            continue;
+                        } catch (IOException e) {
+                            // taken; fall back to a free port
+                        }
+                    }
+                    bound[i] = RandomPorts.bind(range, binder);
+                }
+                return bound;
+            } catch (IOException e) {
+                for (int port : bound) {
+                    if (lease > 0 && port > 0) {
+                        PortLeases.release(port);
+                    }
+                }
+                throw e;
+            } finally {
+                for (ServerSocket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+
+        private int bind(int port, List<ServerSocket> sockets) throws IOException {
+            if (lease > 0) {
+                return PortLeases.lease(port, lease);
+            }
+            ServerSocket socket = new ServerSocket(port);
+            sockets.add(socket);
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public void checkRoles(final org.jenkinsci.remoting.RoleChecker checker) throws SecurityException {
+            checker.check(this, jenkins.security.Roles.SLAVE);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Closes agent-side leases.
+     */
+    static final class ReleaseTask implements Callable<Void,IOException> {
+        final int[] ports;
+
+        ReleaseTask(int[] ports) {
+            this.ports = ports;
+        }
+
+        public Void call() {
+            for (int port : ports) {
+                PortLeases.release(port);
+            }
+            return null;
+        }
+
+        @Override
+        public void checkRoles(final org.jenkinsci.remoting.RoleChecker checker) throws SecurityException {
+            checker.check(this, jenkins.security.Roles.SLAVE);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PortAllocationManager.class.getName());
 }
@@ -1,10 +1,14 @@
 package org.jvnet.hudson.plugins.port_allocator;
 
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.model.*;
 import hudson.tasks.BuildWrapper;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.util.SystemProperties;
 import net.sf.json.JSONObject;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,6 +36,13 @@ public class PortAllocator extends BuildWrapper
 
     public final PortType[] ports;
 
+    /**
+     * How many milliseconds the clean up of each port, such as shutting down a left-over
+     * server, may take on the node before it is abandoned.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Tunable from the script console")
+    public static long CLEANUP_TIMEOUT = SystemProperties.getLong(PortAllocator.class.getName() + ".cleanUpTimeout", 60000L);
+
     private PortAllocator(PortType[] ports){
         this.ports = ports;
     }
@@ -54,27 +65,88 @@ public class PortAllocator extends BuildWrapper
             };
         }
         final Computer cur = currentExecutor.getOwner();
-        Map<String,Integer> prefPortMap = new HashMap<String,Integer>();
-        AbstractBuild previousBuild = build.getPreviousBuild();
-        if (previousBuild != null) {
-            AllocatedPortAction prevAlloc = previousBuild.getAction(AllocatedPortAction.class);
-            if (prevAlloc != null) {
-                // try to assign ports assigned in previous build
-                prefPortMap = prevAlloc.getPreviousAllocatedPorts();
+        final PortAllocationManager pam = PortAllocationManager.getManager(cur);
+        // try to assign ports assigned in the last successful build on this node
+        Map<String,Integer> prefPortMap = PreferredPortIndex.get().lookup(build.getParent().getFullName(), pam.getNodeName());
+        if (prefPortMap == null) {
+            // nothing recorded on this node, as right after an upgrade; fall back to the last successful build
+            prefPortMap = Collections.emptyMap();
+            Run previousBuild = build.getPreviousSuccessfulBuild();
+            if (previousBuild != null) {
+                AllocatedPortAction prevAlloc = previousBuild.getAction(AllocatedPortAction.class);
+                if (prevAlloc != null) {
+                    prefPortMap = prevAlloc.getPreviousAllocatedPorts();
+                }
             }
         }
-        final PortAllocationManager pam = PortAllocationManager.getManager(cur);
         Map<String,Integer> portMap = new HashMap<String,Integer>();
         final List<Port> allocated = new ArrayList<Port>();
 
+        // plain fixed and random ports are allocated all at once, in a single round trip to the node
+        int[] fixedPorts = new int[ports.length];
+        int[] prefPorts = new int[ports.length];
+        int batchSize = 0;
         for (PortType pt : ports) {
-            logger.println("Allocating TCP port "+pt.name);
-            int prefPort = prefPortMap.get(pt.name)== null?0:prefPortMap.get(pt.name);
-            Port p = pt.allocate(build, pam, prefPort, launcher, listener);
-            allocated.add(p);
-            portMap.put(pt.name,p.get());
-            logger.println("  -> Assigned "+p.get());
+            if (pt.isBatchAllocatable()) {
+                fixedPorts[batchSize] = pt.getFixedPort();
+                prefPorts[batchSize++] = prefPortMap.get(pt.name)== null?0:prefPortMap.get(pt.name);
+            }
+        }
+        int[] batch = new int[0];
+        if (batchSize > 0) {
+            logger.println("Allocating " + batchSize + " TCP ports");
+            batch = pam.allocateAll(build, Arrays.copyOf(fixedPorts, batchSize), Arrays.copyOf(prefPorts, batchSize));
+        }
+
+        boolean success = false;
+        try {
+            int next = 0;
+            for (PortType pt : ports) {
+                Port p;
+                if (pt.isBatchAllocatable()) {
+                    p = pt.createPort(build, pam, batch[next++], launcher, listener);
+                } else {
+                    logger.println("Allocating TCP port "+pt.name);
+                    int prefPort = prefPortMap.get(pt.name)== null?0:prefPortMap.get(pt.name);
+                    p = pt.allocate(build, pam, prefPort, launcher, listener);
+                }
+                allocated.add(p);
+                portMap.put(pt.name,p.get());
+                Map<String,String> vars = new TreeMap<String,String>();
+                p.buildEnvVars(vars);
+                for (Map.Entry<String,String> e : vars.entrySet()) {
+                    logger.println("  -> Assigned "+e.getKey()+"="+e.getValue());
+                }
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                // give back what has been allocated so far, so that a failed set up doesn't leak ports
+                for (int port : batch) {
+                    pam.free(port);
+                }
+                for (Port p : allocated) {
+                    if (!p.type.isBatchAllocatable()) {
+                        for (int port : p.getAll()) {
+                            pam.free(port);
+                        }
+                    }
+                }
+            }
+        }
+
+        // the build is about to start using the ports, so let go of them on the agent
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (Port p : allocated) {
+            for (int port : p.getAll()) {
+                numbers.add(port);
+            }
         }
+        int[] leased = new int[numbers.size()];
+        for (int i = 0; i < leased.length; i++) {
+            leased[i] = numbers.get(i);
+        }
+        pam.releaseLeases(leased);
 
         // TODO: only log messages when we are blocking.
         logger.println("TCP port allocation complete");
@@ -85,13 +157,12 @@ public class PortAllocator extends BuildWrapper
             @Override
             public void buildEnvVars(Map<String, String> env) {
                 for (Port p : allocated)
-                    env.put(p.type.name, String.valueOf(p.get()));
+                    p.buildEnvVars(env);
             }
 
             @Override
             public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
-                for (Port p : allocated)
-                    p.cleanUp();
+                ParallelCleanUpTask.cleanUp(allocated, launcher.getChannel(), listener);
                 return true;
             }
         };
@@ -153,6 +224,7 @@ public class PortAllocator extends BuildWrapper
             for (Pool p : pools) {
                 p.name = checkPoolName(p.name);
                 checkPortNumbers(p.ports);
+                p.compile();
             }
             this.pools = pools;
             save();
@@ -193,8 +265,13 @@ public class PortAllocator extends BuildWrapper
         }
 
         private void checkPortNumbers(String ports) throws FormException {
-            if (!Pattern.matches("(\\d+,)*\\d+", ports)) {
-                throw new FormException("Need a comma separated list of port numbers", "ports");
+            if (ports == null || !Pattern.matches("\\s*\\d+(\\s*-\\s*\\d+)?(\\s*,\\s*\\d+(\\s*-\\s*\\d+)?)*\\s*", ports)) {
+                throw new FormException("Need a comma separated list of port numbers or port ranges, like 9000-9999,12000", "ports");
+            }
+            try {
+                PortRangeList.parse(ports);
+            } catch (IllegalArgumentException e) {
+                throw new FormException(e.getMessage(), "ports");
             }
         }
 
@@ -202,6 +279,14 @@ public class PortAllocator extends BuildWrapper
             return pools;
         }
 
+        public ListBoxModel doFillSelectionItems() {
+            ListBoxModel model = new ListBoxModel();
+            model.add("Least recently freed", Pool.Selection.LEAST_RECENTLY_FREED.name());
+            model.add("Round robin", Pool.Selection.ROUND_ROBIN.name());
+            model.add("Random", Pool.Selection.RANDOM.name());
+            return model;
+        }
+
         public Pool getPoolByName(String poolName) throws PoolNotDefinedException {
             for (Pool p : pools) {
                 if (p.name.toUpperCase().equals(poolName.toUpperCase())) {
@@ -212,7 +297,7 @@ public class PortAllocator extends BuildWrapper
         }
 
         public int getPoolSize(String poolName) throws PoolNotDefinedException {
-            return getPoolByName(poolName).getPortsAsInt().length;
+            return getPoolByName(poolName).size();
         }
     }
 }
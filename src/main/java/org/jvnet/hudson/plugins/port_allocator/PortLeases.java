@@ -0,0 +1,87 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Keeps probed ports bound on the agent until the build is about to use them.
+ *
+ * <p>
+ * Without a lease, a port is probed by binding and immediately closing a socket,
+ * and any other process on the agent can take it before the build binds it.
+ * A lease keeps the probe socket open instead, and closes it when released or
+ * after the hand-off timeout, whichever comes first.
+ *
+ * <p>
+ * This class is used from remote tasks, so its state lives in the agent JVM.
+ */
+final class PortLeases {
+    /**
+     * Sockets currently held, by port.
+     */
+    private static final Map<Integer,ServerSocket> LEASES = new HashMap<Integer,ServerSocket>();
+
+    private static Timer timer;
+
+    private PortLeases() {}
+
+    /**
+     * Binds the port and keeps it bound for at most {@code timeoutMillis}.
+     *
+     * @param port 0 to lease a free port
+     * @return the port leased
+     * @throws IOException if the port cannot be bound
+     */
+    static synchronized int lease(int port, long timeoutMillis) throws IOException {
+        final ServerSocket socket = new ServerSocket();
+        try {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        final int localPort = socket.getLocalPort();
+        close(LEASES.put(localPort, socket));
+
+        if (timer == null) {
+            timer = new Timer("Port allocator lease expiry", true);
+        }
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                expire(localPort, socket);
+            }
+        }, timeoutMillis);
+        return localPort;
+    }
+
+    /**
+     * Closes the lease on the port, if any, so that the build can bind it.
+     */
+    static synchronized void release(int port) {
+        close(LEASES.remove(port));
+    }
+
+    private static synchronized void expire(int port, ServerSocket socket) {
+        if (LEASES.get(port) == socket) {
+            LEASES.remove(port);
+            close(socket);
+        }
+    }
+
+    private static void close(ServerSocket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing more we can do
+            }
+        }
+    }
+}
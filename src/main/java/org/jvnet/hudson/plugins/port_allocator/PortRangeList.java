@@ -0,0 +1,213 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Immutable list of TCP port numbers, stored as ranges.
+ *
+ * <p>
+ * Parsed from a comma separated list whose items are either single port numbers
+ * or inclusive ranges, like {@code 8080,9000-9999,12000-12100}.
+ * Ports keep the order in which they were listed.
+ */
+public final class PortRangeList implements Serializable {
+    /**
+     * Range bounds in listed order, {@code [lo0,hi0,lo1,hi1,...]}, with adjacent items coalesced.
+     */
+    private final int[] ranges;
+
+    /**
+     * Same ranges sorted and merged, for lookups.
+     */
+    private final int[] sorted;
+
+    private final int size;
+
+    private PortRangeList(int[] ranges) {
+        this.ranges = ranges;
+        this.sorted = merge(ranges);
+        int size = 0;
+        for (int i = 0; i < sorted.length; i += 2) {
+            size += sorted[i + 1] - sorted[i] + 1;
+        }
+        this.size = size;
+    }
+
+    /**
+     * Parses a comma separated list of ports and port ranges.
+     *
+     * @throws IllegalArgumentException if the list is malformed or contains invalid port numbers
+     */
+    public static PortRangeList parse(String spec) {
+        if (spec == null || spec.trim().length() == 0) {
+            throw new IllegalArgumentException("No ports given");
+        }
+        String[] items = spec.split(",");
+        int[] ranges = new int[items.length * 2];
+        int n = 0;
+        for (String item : items) {
+            item = item.trim();
+            int dash = item.indexOf('-', 1);
+            int lo, hi;
+            if (dash < 0) {
+                lo = hi = parsePort(item);
+            } else {
+                lo = parsePort(item.substring(0, dash).trim());
+                hi = parsePort(item.substring(dash + 1).trim());
+                if (lo > hi) {
+                    throw new IllegalArgumentException("Invalid port range: " + item);
+                }
+            }
+            if (n > 0 && ranges[n - 1] + 1 == lo) {
+                // continues the previous item
+                ranges[n - 1] = hi;
+            } else {
+                ranges[n++] = lo;
+                ranges[n++] = hi;
+            }
+        }
+        return new PortRangeList(Arrays.copyOf(ranges, n));
+    }
+
+    private static int parsePort(String s) {
+        int port;
+        try {
+            port = Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a port number: " + s);
+        }
+        if (port <= 0 || port >= PortAllocationManager.PORT_COUNT) {
+            throw new IllegalArgumentException("Port number out of range: " + s);
+        }
+        return port;
+    }
+
+    private static int[] merge(int[] ranges) {
+        int count = ranges.length / 2;
+        long[] packed = new long[count];
+        for (int i = 0; i < count; i++) {
+            packed[i] = ((long) ranges[2 * i] << 32) | ranges[2 * i + 1];
+        }
+        Arrays.sort(packed);
+
+        int[] merged = new int[ranges.length];
+        int n = 0;
+        for (long p : packed) {
+            int lo = (int) (p >>> 32), hi = (int) p;
+            if (n > 0 && lo <= merged[n - 1] + 1) {
+                merged[n - 1] = Math.max(merged[n - 1], hi);
+            } else {
+                merged[n++] = lo;
+                merged[n++] = hi;
+            }
+        }
+        return Arrays.copyOf(merged, n);
+    }
+
+    /**
+     * Returns true if the port is in this list.
+     */
+    public boolean contains(int port) {
+        // index of the last range that starts at or before port
+        int lo = 0, hi = sorted.length / 2 - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[2 * mid] <= port) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi >= 0 && port <= sorted[2 * hi + 1];
+    }
+
+    /**
+     * Returns the port at the given index among the ports of this list sorted in ascending order.
+     */
+    public int get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        for (int i = 0; ; i += 2) {
+            int n = sorted[i + 1] - sorted[i] + 1;
+            if (index < n) {
+                return sorted[i] + index;
+            }
+            index -= n;
+        }
+    }
+
+    /**
+     * Returns this list without the ports from {@code lo} to {@code hi}, in ascending order.
+     */
+    public PortRangeList without(int lo, int hi) {
+        int[] ranges = new int[sorted.length + 2];
+        int n = 0;
+        for (int i = 0; i < sorted.length; i += 2) {
+            if (sorted[i] < lo) {
+                ranges[n++] = sorted[i];
+                ranges[n++] = Math.min(sorted[i + 1], lo - 1);
+            }
+            if (sorted[i + 1] > hi) {
+                ranges[n++] = Math.max(sorted[i], hi + 1);
+                ranges[n++] = sorted[i + 1];
+            }
+        }
+        return new PortRangeList(Arrays.copyOf(ranges, n));
+    }
+
+    /**
+     * Returns this list without the ports of {@code other}, in ascending order.
+     */
+    public PortRangeList without(PortRangeList other) {
+        PortRangeList result = this;
+        for (int i = 0; i < other.sorted.length; i += 2) {
+            result = result.without(other.sorted[i], other.sorted[i + 1]);
+        }
+        return result;
+    }
+
+    /**
+     * Number of distinct ports in this list.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the ports in listed order. Ports listed more than once appear only once.
+     */
+    public int[] toArray() {
+        int[] ports = new int[size];
+        BitSet seen = new BitSet();
+        int n = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            for (int port = ranges[i]; port <= ranges[i + 1]; port++) {
+                if (!seen.get(port)) {
+                    seen.set(port);
+                    ports[n++] = port;
+                }
+            }
+        }
+        return ports;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (buf.length() > 0) {
+                buf.append(',');
+            }
+            buf.append(ranges[i]);
+            if (ranges[i + 1] != ranges[i]) {
+                buf.append('-').append(ranges[i + 1]);
+            }
+        }
+        return buf.toString();
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,100 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Queue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed and pooled ports that a queued build will ask for, as seen by the queue task dispatchers.
+ */
+final class PortRequirements {
+    private final int[] fixedPorts;
+
+    /**
+     * Number of ports needed from each pool.
+     */
+    private final Map<Pool,Integer> pools;
+
+    PortRequirements(int[] fixedPorts, Map<Pool,Integer> pools) {
+        this.fixedPorts = fixedPorts;
+        this.pools = pools;
+    }
+
+    /**
+     * Returns the requirements of the task, or null if it does not use {@link PortAllocator}
+     * or only needs random ports.
+     */
+    static PortRequirements of(Queue.Task task) {
+        if (!(task instanceof BuildableItemWithBuildWrappers)) {
+            return null;
+        }
+        PortAllocator allocator = ((BuildableItemWithBuildWrappers) task).getBuildWrappersList().get(PortAllocator.class);
+        if (allocator == null) {
+            return null;
+        }
+
+        List<Integer> fixed = new ArrayList<Integer>();
+        Map<Pool,Integer> pools = new HashMap<Pool,Integer>();
+        for (PortType pt : allocator.ports) {
+            if (pt instanceof PooledPortType) {
+                try {
+                    Pool pool = PortAllocator.DESCRIPTOR.getPoolByName(pt.name);
+                    int count = ((PooledPortType) pt).getCount();
+                    Integer n = pools.get(pool);
+                    pools.put(pool, n == null ? count : n + count);
+                } catch (PoolNotDefinedException e) {
+                    // the build will report it
+                }
+            } else if (pt.isFixedPort()) {
+                fixed.add(pt.getFixedPort());
+            }
+        }
+        if (fixed.isEmpty() && pools.isEmpty()) {
+            return null;
+        }
+        int[] fixedPorts = new int[fixed.size()];
+        for (int i = 0; i < fixedPorts.length; i++) {
+            fixedPorts[i] = fixed.get(i);
+        }
+        return new PortRequirements(fixedPorts, pools);
+    }
+
+    /**
+     * Returns the first pool that does not have enough free ports on the node, or null.
+     * Pools that could never hold the ports asked for are left to fail the build instead.
+     */
+    Pool getExhaustedPool(PortAllocationManager manager) {
+        for (Map.Entry<Pool,Integer> e : pools.entrySet()) {
+            if (e.getValue() > e.getKey().size()) {
+                continue;
+            }
+            if (!manager.hasFreePoolPorts(e.getKey(), e.getValue())) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first fixed port that is in use on the node, or 0.
+     */
+    int getBusyFixedPort(PortAllocationManager manager) {
+        for (int port : fixedPorts) {
+            if (!manager.isFree(port)) {
+                return port;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns true if all the ports could be allocated on the node right now.
+     */
+    boolean isSatisfiedBy(PortAllocationManager manager) {
+        return getBusyFixedPort(manager) == 0 && getExhaustedPool(manager) == null;
+    }
+}
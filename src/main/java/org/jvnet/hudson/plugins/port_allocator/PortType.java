@@ -5,6 +5,8 @@ import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.Describable;
 import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 
 import java.io.IOException;
 import java.io.Serial;
@@ -63,6 +65,43 @@ public abstract class PortType implements ExtensionPoint, Describable<PortType>,
      */
     public abstract Port allocate(AbstractBuild<?, ?> build, PortAllocationManager manager, int prefPort, Launcher launcher, BuildListener buildListener) throws IOException, InterruptedException;
 
+    /**
+     * Returns true if the port of this type is just a fixed or random port, so that
+     * {@link PortAllocator} can allocate it together with the other ports of the build
+     * through {@link PortAllocationManager#allocateAll} and then call {@link #createPort}
+     * instead of {@link #allocate}.
+     */
+    public boolean isBatchAllocatable() {
+        return false;
+    }
+
+    /**
+     * Wraps a port that has already been allocated for a given build.
+     * Called by {@link PortAllocator} if {@link #isBatchAllocatable()} returns true,
+     * and by the {@code allocatePorts} Pipeline step, which allocates ports on its own
+     * so as not to block a thread while waiting.
+     *
+     * <p>
+     * By default, the port is wrapped as it is, and freed without any further clean up.
+     *
+     * @param build the build that will use the allocated port
+     * @param manager the manager that allocated the port
+     * @param port the port number allocated
+     * @param launcher launcher used to perform operations for the build
+     * @param listener listener that receives information about the build
+     */
+    public Port createPort(Run<?, ?> build, final PortAllocationManager manager, final int port, Launcher launcher, TaskListener listener) {
+        return new Port(this) {
+            public int get() {
+                return port;
+            }
+
+            public void cleanUp() {
+                manager.free(port);
+            }
+        };
+    }
+
     public abstract PortTypeDescriptor getDescriptor();
 
     @Serial
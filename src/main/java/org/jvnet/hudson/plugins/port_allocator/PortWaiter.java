@@ -0,0 +1,33 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import hudson.model.Run;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A build waiting in line for a port in {@link PortAllocationManager}.
+ *
+ * <p>
+ * The port is handed over to the waiter directly, so that exactly one
+ * waiter is woken up for every port that is released. The waiter completes
+ * while the manager is locked, so what depends on it must run asynchronously.
+ */
+final class PortWaiter extends CompletableFuture<Integer> {
+    /**
+     * Build that will own the port.
+     */
+    final Run owner;
+
+    PortWaiter(Run owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Hands over a port.
+     *
+     * @return false if the waiter has been cancelled, in which case the port must go to someone else
+     */
+    boolean grant(int port) {
+        return complete(port);
+    }
+}
@@ -0,0 +1,300 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ports that the last successful build of each job got on each node, by port name.
+ *
+ * <p>
+ * {@link PortAllocator} prefers these ports, so that a job keeps its ports from one build to the next.
+ * Looking them up here rather than in the previous build avoids loading that build from disk;
+ * only jobs with nothing recorded on the node, as right after an upgrade, fall back to it.
+ * Entries go away with their job, and with their node in {@link PortAllocationManager.ComputerListenerImpl}.
+ * The index is kept in memory and saved to a small binary file a few seconds after it changes.
+ */
+final class PreferredPortIndex {
+    private static final int VERSION = 1;
+
+    /**
+     * Delay between a change and the save that writes it out, so that builds finishing together share a save.
+     */
+    private static final long SAVE_DELAY = 5;
+
+    private static PreferredPortIndex instance;
+
+    /**
+     * File the index is saved to, or null to keep it in memory only.
+     */
+    private final File file;
+
+    /**
+     * Job full name, then node name, then port name to port number.
+     */
+    private final Map<String,Map<String,Map<String,Integer>>> jobs = new HashMap<String,Map<String,Map<String,Integer>>>();
+
+    private boolean saveScheduled;
+
+    PreferredPortIndex(File file) {
+        this.file = file;
+        if (file != null) {
+            try {
+                load();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file + ", starting over", e);
+                jobs.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the index of this Jenkins, or an in-memory one outside of Jenkins.
+     */
+    static synchronized PreferredPortIndex get() {
+        if (instance == null) {
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            instance = new PreferredPortIndex(jenkins == null ? null
+                    : new File(new File(jenkins.getRootDir(), "port-allocator"), "preferred-ports.bin"));
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the ports of the last successful build of the job on the node, or null if there is none.
+     */
+    synchronized Map<String,Integer> lookup(String job, String node) {
+        Map<String,Map<String,Integer>> nodes = jobs.get(job);
+        if (nodes == null) {
+            return null;
+        }
+        Map<String,Integer> ports = nodes.get(node);
+        return ports == null ? null : Collections.unmodifiableMap(ports);
+    }
+
+    synchronized void record(String job, String node, Map<String,Integer> ports) {
+        Map<String,Map<String,Integer>> nodes = jobs.get(job);
+        if (nodes == null) {
+            nodes = new HashMap<String,Map<String,Integer>>();
+            jobs.put(job, nodes);
+        }
+        if (ports.equals(nodes.get(node))) {
+            return;
+        }
+        nodes.put(node, new HashMap<String,Integer>(ports));
+        scheduleSave();
+    }
+
+    /**
+     * Moves the entries of a job, and of the jobs inside it if it is a folder, to a new name.
+     */
+    synchronized void rename(String oldName, String newName) {
+        Map<String,Map<String,Map<String,Integer>>> moved = new HashMap<String,Map<String,Map<String,Integer>>>();
+        for (Iterator<Map.Entry<String,Map<String,Map<String,Integer>>>> it = jobs.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String,Map<String,Map<String,Integer>>> e = it.next();
+            if (e.getKey().equals(oldName)) {
+                moved.put(newName, e.getValue());
+                it.remove();
+            } else if (e.getKey().startsWith(oldName + '/')) {
+                moved.put(newName + e.getKey().substring(oldName.length()), e.getValue());
+                it.remove();
+            }
+        }
+        if (!moved.isEmpty()) {
+            jobs.putAll(moved);
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Drops the entries of a job, and of the jobs inside it if it is a folder.
+     */
+    synchronized void remove(String name) {
+        boolean changed = false;
+        for (Iterator<String> it = jobs.keySet().iterator(); it.hasNext();) {
+            String job = it.next();
+            if (job.equals(name) || job.startsWith(name + '/')) {
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Drops the entries of the nodes that are not in the given set, such as nodes that have been removed.
+     */
+    synchronized void retainNodes(Set<String> nodes) {
+        boolean changed = false;
+        for (Iterator<Map<String,Map<String,Integer>>> it = jobs.values().iterator(); it.hasNext();) {
+            Map<String,Map<String,Integer>> byNode = it.next();
+            changed |= byNode.keySet().retainAll(nodes);
+            if (byNode.isEmpty()) {
+                it.remove();
+            }
+        }
+        if (changed) {
+            scheduleSave();
+        }
+    }
+
+    private void scheduleSave() {
+        if (file == null || saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                try {
+                    save();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+                }
+            }
+        }, SAVE_DELAY, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes the index out, replacing the previous file atomically.
+     * Only the snapshot is taken under the lock, so that lookups don't wait for the disk.
+     */
+    void save() throws IOException {
+        byte[] snapshot;
+        synchronized (this) {
+            saveScheduled = false;
+            snapshot = serialize();
+        }
+        synchronized (file) {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            File tmp = new File(dir, file.getName() + ".tmp");
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(snapshot);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VERSION);
+        out.writeInt(jobs.size());
+        for (Map.Entry<String,Map<String,Map<String,Integer>>> job : jobs.entrySet()) {
+            out.writeUTF(job.getKey());
+            out.writeShort(job.getValue().size());
+            for (Map.Entry<String,Map<String,Integer>> node : job.getValue().entrySet()) {
+                out.writeUTF(node.getKey());
+                out.writeShort(node.getValue().size());
+                for (Map.Entry<String,Integer> port : node.getValue().entrySet()) {
+                    out.writeUTF(port.getKey());
+                    out.writeShort(port.getValue());
+                }
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private void load() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return; // nothing recorded yet
+        }
+        try {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unsupported format");
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String job = in.readUTF();
+                Map<String,Map<String,Integer>> nodes = new HashMap<String,Map<String,Integer>>();
+                for (int j = in.readUnsignedShort(); j > 0; j--) {
+                    String node = in.readUTF();
+                    Map<String,Integer> ports = new HashMap<String,Integer>();
+                    for (int k = in.readUnsignedShort(); k > 0; k--) {
+                        String name = in.readUTF();
+                        ports.put(name, in.readUnsignedShort());
+                    }
+                    nodes.put(node, ports);
+                }
+                jobs.put(job, nodes);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Records the ports of successful builds.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<AbstractBuild> {
+        public RunListenerImpl() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            AllocatedPortAction action = build.getAction(AllocatedPortAction.class);
+            if (action != null && build.getResult() == Result.SUCCESS) {
+                get().record(build.getParent().getFullName(),
+                        PortAllocationManager.getNodeName(build.getBuiltOnStr()),
+                        action.getPreviousAllocatedPorts());
+            }
+        }
+    }
+
+    /**
+     * Follows jobs that are renamed, moved or deleted.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            get().rename(oldFullName, newFullName);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            get().remove(item.getFullName());
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PreferredPortIndex.class.getName());
+}
@@ -0,0 +1,84 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Agent side of random port allocation. Picks ports outside the ephemeral range of the agent,
+ * from which the OS takes the local ports of outgoing connections, so that an allocated port
+ * is not grabbed by some client socket before the build gets to listen on it.
+ */
+final class RandomPorts {
+    /**
+     * Ephemeral range assumed when the actual one cannot be read, as on Windows and macOS.
+     */
+    private static final int[] IANA_EPHEMERAL_RANGE = {49152, 65535};
+
+    /**
+     * Number of random candidates tried before letting the OS pick a port.
+     */
+    static final int MAX_CANDIDATES = 8;
+
+    private static volatile int[] ephemeralRange;
+
+    /**
+     * Binds a port, one way or another.
+     */
+    interface Binder {
+        /**
+         * @param port port to bind, or 0 for any free port
+         * @return the port bound
+         */
+        int bind(int port) throws IOException;
+    }
+
+    private RandomPorts() {}
+
+    /**
+     * Returns the ephemeral port range of this machine, read once from the kernel on Linux.
+     */
+    static int[] getEphemeralRange() {
+        int[] range = ephemeralRange;
+        if (range == null) {
+            range = readEphemeralRange(new File("/proc/sys/net/ipv4/ip_local_port_range"));
+            ephemeralRange = range = range != null ? range : IANA_EPHEMERAL_RANGE;
+        }
+        return range;
+    }
+
+    /**
+     * Parses a file like {@code /proc/sys/net/ipv4/ip_local_port_range}, or returns null if it cannot be read.
+     */
+    static int[] readEphemeralRange(File file) {
+        try {
+            String[] bounds = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim().split("\\s+");
+            int lo = Integer.parseInt(bounds[0]), hi = Integer.parseInt(bounds[1]);
+            return lo <= hi ? new int[] {lo, hi} : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Binds a random port of {@code range} outside the ephemeral range, trying at most {@link #MAX_CANDIDATES}
+     * of them, then lets the OS pick any free port. If {@code range} is null, lets the OS pick right away.
+     */
+    static int bind(PortRangeList range, Binder binder) throws IOException {
+        if (range == null) {
+            return binder.bind(0);
+        }
+        int[] ephemeral = getEphemeralRange();
+        PortRangeList candidates = range.without(ephemeral[0], ephemeral[1]);
+        for (int i = 0; i < MAX_CANDIDATES && candidates.size() > 0; i++) {
+            try {
+                return binder.bind(candidates.get(ThreadLocalRandom.current().nextInt(candidates.size())));
+            } catch (IOException e) {
+                // taken; try another one
+            }
+        }
+        return binder.bind(0);
+    }
+}
@@ -2,11 +2,15 @@ package org.jvnet.hudson.plugins.port_allocator;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
+import hudson.Extension;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.remoting.Callable;
 import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest2;
 
@@ -41,10 +45,20 @@ public class TomcatShutdownPortType  extends PortType {
         else
             n = manager.allocateRandom(build, prefPort);
 
+        return createPort(build, manager, n, launcher, buildListener);
+    }
+
+    @Override
+    public boolean isBatchAllocatable() {
+        return true;
+    }
+
+    @Override
+    public Port createPort(Run<?, ?> build, final PortAllocationManager manager, final int n, final Launcher launcher, final TaskListener buildListener) {
         final class TomcatCleanUpTask implements Callable<Void,IOException>, Serializable {
-            private final BuildListener buildListener;
+            private final TaskListener buildListener;
 
-            public TomcatCleanUpTask(BuildListener buildListener) {
+            public TomcatCleanUpTask(TaskListener buildListener) {
                 this.buildListener = buildListener;
             }
 
@@ -93,12 +107,22 @@ public class TomcatShutdownPortType  extends PortType {
             }
 
             public void cleanUp() throws IOException, InterruptedException {
-                manager.free(n);
+                free();
                 hudson.remoting.VirtualChannel channel = launcher.getChannel();
                 if (channel != null) {
-                    channel.call(new TomcatCleanUpTask(buildListener));
+                    channel.call(getCleanUpTask());
                 }
             }
+
+            @Override
+            public void free() {
+                manager.free(n);
+            }
+
+            @Override
+            public Callable<Void,IOException> getCleanUpTask() {
+                return new TomcatCleanUpTask(buildListener);
+            }
         };
     }
 
@@ -106,6 +130,7 @@ public class TomcatShutdownPortType  extends PortType {
         return DescriptorImpl.INSTANCE;
     }
 
+    @Symbol("tomcatShutdownPort")
     public static final class DescriptorImpl extends PortTypeDescriptor {
         private DescriptorImpl() {
             super(TomcatShutdownPortType.class);
@@ -122,6 +147,7 @@ public class TomcatShutdownPortType  extends PortType {
             return "Tomcat shutdown port";
         }
 
+        @Extension
         public static final DescriptorImpl INSTANCE = new DescriptorImpl();
     }
 
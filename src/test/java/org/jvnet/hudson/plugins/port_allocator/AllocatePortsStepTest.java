@@ -0,0 +1,143 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.BodyInvoker;
+import org.jenkinsci.plugins.workflow.steps.EnvironmentExpander;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import junit.framework.TestCase;
+
+public class AllocatePortsStepTest extends TestCase {
+	private Computer computer;
+	private Run run;
+	private ByteArrayOutputStream log;
+	private StepContext context;
+
+	@Override
+	protected void setUp() throws Exception {
+		// managers are kept by node name, so give each test a node of its own
+		computer = Mockito.mock(Computer.class);
+		Mockito.when(computer.getName()).thenReturn(getName());
+		Mockito.when(computer.getChannel()).thenReturn(FakeChannel.create(0, TimeUnit.MILLISECONDS, 0));
+
+		Job job = Mockito.mock(Job.class);
+		Mockito.when(job.getFullName()).thenReturn("job");
+		run = Mockito.mock(Run.class);
+		Mockito.when(run.getParent()).thenReturn(job);
+		Mockito.when(run.getNumber()).thenReturn(1);
+
+		log = new ByteArrayOutputStream();
+		TaskListener listener = Mockito.mock(TaskListener.class);
+		Mockito.when(listener.getLogger()).thenReturn(new PrintStream(log, true));
+
+		final Map<Class<?>,Object> objects = new HashMap<Class<?>,Object>();
+		objects.put(Computer.class, computer);
+		objects.put(Run.class, run);
+		objects.put(TaskListener.class, listener);
+		objects.put(Launcher.class, Mockito.mock(Launcher.class));
+		context = Mockito.mock(StepContext.class);
+		Mockito.when(context.get(Mockito.any(Class.class))).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				return objects.get(invocation.getArgument(0));
+			}
+		});
+	}
+
+	/**
+	 * Ensure that the step waits for a busy fixed port, gets it once freed along with a random port,
+	 * runs the block with both, and frees them when the block ends.
+	 * @throws Exception
+	 */
+	public void testAllocatesAndFrees() throws Exception {
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+		final AbstractBuild other = Mockito.mock(AbstractBuild.class);
+		manager.allocate(other, 3400);
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final EnvironmentExpander[] expander = new EnvironmentExpander[1];
+		final BodyExecutionCallback[] callback = new BodyExecutionCallback[1];
+		final BodyInvoker invoker = Mockito.mock(BodyInvoker.class);
+		Mockito.when(context.newBodyInvoker()).thenReturn(invoker);
+		Mockito.when(invoker.withContext(Mockito.any())).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				expander[0] = invocation.getArgument(0);
+				return invoker;
+			}
+		});
+		Mockito.when(invoker.withCallback(Mockito.any())).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				callback[0] = invocation.getArgument(0);
+				return invoker;
+			}
+		});
+		Mockito.when(invoker.start()).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				started.countDown();
+				return null;
+			}
+		});
+
+		AllocatePortsStep.Execution execution = new AllocatePortsStep.Execution(context,
+				new PortType[] {new DefaultPortType("3400"), new DefaultPortType("HTTP")});
+		assertFalse(execution.start());
+		assertEquals("waiting for ports", execution.getStatus());
+		assertTrue(log.toString(), log.toString().contains("Waiting for TCP port 3400"));
+
+		manager.free(3400);
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		EnvVars env = new EnvVars();
+		expander[0].expand(env);
+		assertEquals("3400", env.get("3400"));
+		int random = Integer.parseInt(env.get("HTTP"));
+		assertFalse(manager.isFree(3400));
+		assertFalse(manager.isFree(random));
+
+		callback[0].onSuccess(context, "done");
+		Mockito.verify(context, Mockito.timeout(10000)).onSuccess("done");
+		assertTrue(manager.isFree(3400));
+		assertTrue(manager.isFree(random));
+
+		Map<String,Integer> preferred = new HashMap<String,Integer>();
+		preferred.put("3400", 3400);
+		preferred.put("HTTP", random);
+		assertEquals(preferred, PreferredPortIndex.get().lookup("job", getName()));
+	}
+
+	/**
+	 * Ensure that a step stopped while waiting for a port withdraws its request.
+	 * @throws Exception
+	 */
+	public void testStopWhileWaiting() throws Exception {
+		PortAllocationManager manager = PortAllocationManager.getManager(computer);
+		AbstractBuild other = Mockito.mock(AbstractBuild.class);
+		manager.allocate(other, 3400);
+
+		AllocatePortsStep.Execution execution = new AllocatePortsStep.Execution(context,
+				new PortType[] {new DefaultPortType("3400")});
+		assertFalse(execution.start());
+		Exception cause = new Exception("aborted");
+		execution.stop(cause);
+		Mockito.verify(context).onFailure(cause);
+
+		manager.free(3400);
+		assertTrue(manager.isFree(3400));
+	}
+}
@@ -0,0 +1,146 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Micro-benchmarks of the allocation hot paths of {@link PortAllocationManager},
+ * against a {@link FakeChannel} with configurable latency and collision rate.
+ *
+ * <p>
+ * Run through {@link BenchmarkRunner}. Each benchmark frees what it allocates,
+ * so the occupancy set up at the beginning stays constant.
+ */
+@State(Scope.Benchmark)
+public class AllocationBenchmark {
+	private static final AtomicInteger NODES = new AtomicInteger();
+
+	/** First and last port of the range the range benchmarks allocate from. */
+	private static final int RANGE_START = 20000;
+	private static final int RANGE_END = 29999;
+
+	/** Ports of the pool used by {@link #poolAllocateAndFree}. */
+	private static final String POOL_PORTS = "10000-10999";
+
+	/** Remote round trip time of the fake agent. */
+	@Param({"0", "200"})
+	public long latencyMicros;
+
+	/** Probability for the fake agent to report a port as taken. */
+	@Param({"0.0", "0.05"})
+	public double collisionRate;
+
+	/** Fraction of the range and pool ports held by other builds. */
+	@Param({"0.0", "0.5"})
+	public double occupancy;
+
+	private PortAllocationManager manager;
+	private AbstractBuild build;
+	private Pool pool;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		// stub only mocks, as recording every call would skew long runs
+		Computer computer = Mockito.mock(Computer.class, Mockito.withSettings().stubOnly());
+		Mockito.when(computer.getName()).thenReturn("benchmark-" + NODES.incrementAndGet());
+		Mockito.when(computer.getChannel()).thenReturn(
+				FakeChannel.create(latencyMicros, TimeUnit.MICROSECONDS, collisionRate));
+		manager = PortAllocationManager.getManager(computer);
+		build = Mockito.mock(AbstractBuild.class, Mockito.withSettings().stubOnly());
+
+		pool = new Pool();
+		pool.name = "BENCHMARK";
+		pool.ports = POOL_PORTS;
+		pool.compile();
+
+		// other builds holding every other port, up to the requested occupancy
+		AbstractBuild others = Mockito.mock(AbstractBuild.class, Mockito.withSettings().stubOnly());
+		occupy(others, RANGE_START, RANGE_END);
+		for (int port : pool.getPortsAsInt()) {
+			if (hold(port)) {
+				manager.allocate(others, port);
+			}
+		}
+	}
+
+	private void occupy(AbstractBuild owner, int start, int end) throws Exception {
+		for (int port = start; port <= end; port++) {
+			if (hold(port)) {
+				manager.allocate(owner, port);
+			}
+		}
+	}
+
+	private boolean hold(int port) {
+		return occupancy > 0 && (port % 100) < occupancy * 100;
+	}
+
+	/**
+	 * Per-thread cursor, so that threads do not wait for each other's fixed ports.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private static final AtomicInteger THREADS = new AtomicInteger();
+		private final int base = 40000 + THREADS.getAndIncrement() * 1000;
+		private int next;
+
+		int nextPort() {
+			next = (next + 1) % 1000;
+			return base + next;
+		}
+	}
+
+	@Benchmark
+	public int allocateRandom() throws Exception {
+		int port = manager.allocateRandom(build, 0);
+		manager.free(port);
+		return port;
+	}
+
+	@Benchmark
+	public int allocateAndFree(Cursor cursor) throws Exception {
+		int port = manager.allocate(build, cursor.nextPort());
+		manager.free(port);
+		return port;
+	}
+
+	@Benchmark
+	public int[] consecutiveRange() throws Exception {
+		return freeAll(manager.allocatePortRange(build, RANGE_START, RANGE_END, 10, true));
+	}
+
+	@Benchmark
+	public int[] nonConsecutiveRange() throws Exception {
+		return freeAll(manager.allocatePortRange(build, RANGE_START, RANGE_END, 10, false));
+	}
+
+	@Benchmark
+	public boolean isFree(Cursor cursor) {
+		return manager.isFree(RANGE_START + cursor.nextPort() % 1000);
+	}
+
+	@Benchmark
+	public int poolAllocateAndFree() throws Exception {
+		int port = manager.allocateFromPool(build, pool);
+		manager.free(port);
+		return port;
+	}
+
+	private int[] freeAll(int[] ports) {
+		for (int port : ports) {
+			manager.free(port);
+		}
+		return ports;
+	}
+}
@@ -0,0 +1,114 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class AllocationJournalTest extends TestCase {
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("allocation", ".journal");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	/**
+	 * Ensure that reopening a journal gives back the allocations that were not freed.
+	 * @throws Exception
+	 */
+	public void testReplay() throws Exception {
+		AllocationJournal journal = AllocationJournal.open(file);
+		assertTrue(journal.getLive().isEmpty());
+		journal.allocated(8080, "job#1");
+		journal.allocated(8081, "job#1");
+		journal.allocated(9999, "other#7");
+		journal.freed(8081);
+		journal.close();
+
+		journal = AllocationJournal.open(file);
+		assertEquals(live(8080, "job#1", 9999, "other#7"), journal.getLive());
+		journal.freed(8080);
+		journal.close();
+
+		assertEquals(live(9999, "other#7"), AllocationJournal.open(file).getLive());
+	}
+
+	/**
+	 * Ensure that a journal of mostly freed allocations is compacted instead of growing.
+	 * @throws Exception
+	 */
+	public void testCompaction() throws Exception {
+		AllocationJournal journal = AllocationJournal.open(file);
+		long size = file.length();
+		journal.allocated(1, "kept#1");
+		for (int i = 0; i < 20000; i++) {
+			journal.allocated(2 + i % 100, "job#" + i);
+			journal.freed(2 + i % 100);
+		}
+		journal.allocated(200, "job#20000");
+		journal.close();
+
+		assertEquals(size, file.length());
+		assertEquals(live(1, "kept#1", 200, "job#20000"), AllocationJournal.open(file).getLive());
+	}
+
+	/**
+	 * Ensure that records cut short by a crash are ignored, and overwritten by the next ones.
+	 * @throws Exception
+	 */
+	public void testTornRecords() throws Exception {
+		AllocationJournal journal = AllocationJournal.open(file);
+		journal.allocated(1, "a#1");
+		journal.close();
+		// the record of port 1 takes 8 bytes
+
+		// a record whose operation has not been written yet
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(8);
+			raf.writeByte(0);
+			raf.writeShort(2);
+			raf.writeShort(3);
+			raf.write("b#2".getBytes("UTF-8"));
+		} finally {
+			raf.close();
+		}
+		journal = AllocationJournal.open(file);
+		assertEquals(live(1, "a#1"), journal.getLive());
+		journal.close();
+
+		// a record running past the end of the file
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(8);
+			raf.writeByte(1);
+			raf.writeShort(2);
+			raf.writeShort(0xFFFF);
+		} finally {
+			raf.close();
+		}
+		journal = AllocationJournal.open(file);
+		assertEquals(live(1, "a#1"), journal.getLive());
+		journal.allocated(3, "c#3");
+		journal.close();
+
+		assertEquals(live(1, "a#1", 3, "c#3"), AllocationJournal.open(file).getLive());
+	}
+
+	private static Map<Integer,String> live(Object... portsAndOwners) {
+		Map<Integer,String> live = new HashMap<Integer,String>();
+		for (int i = 0; i < portsAndOwners.length; i += 2) {
+			live.put((Integer) portsAndOwners[i], (String) portsAndOwners[i + 1]);
+		}
+		return live;
+	}
+}
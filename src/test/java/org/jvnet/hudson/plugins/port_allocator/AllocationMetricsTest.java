@@ -0,0 +1,122 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+
+import org.mockito.Mockito;
+
+import junit.framework.TestCase;
+
+public class AllocationMetricsTest extends TestCase {
+	private final AllocationMetrics metrics = AllocationMetrics.INSTANCE;
+
+	/**
+	 * Managers are kept by node name, so give each test a node of its own.
+	 */
+	private PortAllocationManager getManager() {
+		final Computer computer = Mockito.mock(Computer.class);
+		Mockito.when(computer.getName()).thenReturn(getName());
+		return PortAllocationManager.getManager(computer);
+	}
+
+	/**
+	 * Ensure that allocations, reclaimed ports and the ports in use of each node are counted.
+	 * The metrics are shared by all tests, so only differences are checked.
+	 * @throws Exception
+	 */
+	public void testCounts() throws Exception {
+		PortAllocationManager manager = getManager();
+		AbstractBuild finished = Mockito.mock(AbstractBuild.class);
+		Map<String,Long> before = metrics.flatten();
+
+		manager.allocate(finished, 3500);
+		manager.allocate(finished, 3501);
+		Map<String,Long> after = metrics.flatten();
+		assertEquals(2, after.get("fixedPort.count") - before.get("fixedPort.count"));
+		assertEquals(Long.valueOf(2), after.get("nodes." + getName() + ".portsInUse"));
+
+		assertEquals(2, manager.reap(null));
+		after = metrics.flatten();
+		assertEquals(2, after.get("reapedPorts") - before.get("reapedPorts"));
+		assertEquals(Long.valueOf(0), after.get("nodes." + getName() + ".portsInUse"));
+	}
+
+	/**
+	 * Ensure that a wait for a fixed port is counted even when the build is aborted meanwhile.
+	 * @throws Exception
+	 */
+	public void testCountsAbortedWaits() throws Exception {
+		final PortAllocationManager manager = getManager();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		manager.allocate(build, 3700);
+		Map<String,Long> before = metrics.flatten();
+
+		final Exception[] failure = new Exception[1];
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					manager.allocate(build, 3700);
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		waiter.start();
+		Thread.sleep(200);
+		waiter.interrupt();
+		waiter.join(10000);
+
+		assertTrue(failure[0] instanceof InterruptedException);
+		assertEquals(1, metrics.flatten().get("fixedPort.count") - before.get("fixedPort.count"));
+		manager.free(3700);
+		assertTrue(manager.isFree(3700));
+	}
+
+	/**
+	 * Ensure that the MBean exposes the same values, read-only.
+	 * @throws Exception
+	 */
+	public void testMBean() throws Exception {
+		PortAllocationManager manager = getManager();
+		manager.allocate(Mockito.mock(AbstractBuild.class), 3600);
+		String inUse = "nodes." + getName() + ".portsInUse";
+
+		assertEquals(Long.valueOf(1), metrics.getAttribute(inUse));
+		AttributeList list = metrics.getAttributes(new String[] {inUse, "noSuchAttribute"});
+		assertEquals(1, list.size());
+		assertEquals(Long.valueOf(1), ((Attribute) list.get(0)).getValue());
+
+		boolean found = false;
+		for (MBeanAttributeInfo info : metrics.getMBeanInfo().getAttributes()) {
+			found |= info.getName().equals(inUse);
+			assertFalse(info.getName(), info.isWritable());
+		}
+		assertTrue(found);
+
+		try {
+			metrics.getAttribute("noSuchAttribute");
+			fail("there is no such attribute");
+		} catch (AttributeNotFoundException e) {
+			// expected
+		}
+		try {
+			metrics.setAttribute(new Attribute(inUse, 0L));
+			fail("the attributes are read-only");
+		} catch (AttributeNotFoundException e) {
+			// expected
+		}
+		assertTrue(metrics.setAttributes(new AttributeList(Arrays.asList(new Attribute(inUse, 0L)))).isEmpty());
+		assertEquals(Long.valueOf(1), metrics.getAttribute(inUse));
+
+		manager.free(3600);
+	}
+}
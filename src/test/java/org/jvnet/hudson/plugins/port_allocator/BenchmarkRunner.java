@@ -0,0 +1,43 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the JMH benchmarks. Not part of the regular test run; use {@code mvn test -Pbenchmark}.
+ *
+ * <p>
+ * The benchmark parameters can be narrowed down with system properties, for example
+ * {@code -Dbenchmark.latencyMicros=500 -Dbenchmark.collisionRate=0.1 -Dbenchmark.threads=8}.
+ * Results are written to {@code target/jmh-report.json}.
+ */
+public class BenchmarkRunner extends TestCase {
+
+	public void testRunBenchmarks() throws Exception {
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include(AllocationBenchmark.class.getName() + "\\.")
+				.mode(Mode.AverageTime)
+				.timeUnit(TimeUnit.MICROSECONDS)
+				.warmupIterations(3)
+				.measurementIterations(5)
+				.forks(1)
+				.threads(Integer.getInteger("benchmark.threads", 1))
+				.shouldFailOnError(true)
+				.resultFormat(ResultFormatType.JSON)
+				.result("target/jmh-report.json");
+		for (String param : new String[] {"latencyMicros", "collisionRate", "occupancy"}) {
+			String value = System.getProperty("benchmark." + param);
+			if (value != null) {
+				options.param(param, value.split(","));
+			}
+		}
+		new Runner(options.build()).run();
+	}
+}
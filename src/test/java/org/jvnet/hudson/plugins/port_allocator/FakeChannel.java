@@ -0,0 +1,91 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import hudson.remoting.VirtualChannel;
+
+import org.jvnet.hudson.plugins.port_allocator.PortAllocationManager.AllocateTask;
+import org.jvnet.hudson.plugins.port_allocator.PortAllocationManager.BatchTask;
+import org.jvnet.hudson.plugins.port_allocator.PortAllocationManager.PortUnavailableException;
+import org.jvnet.hudson.plugins.port_allocator.PortAllocationManager.ProbeTask;
+import org.jvnet.hudson.plugins.port_allocator.PortAllocationManager.ReleaseTask;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * In-process stand-in for an agent channel that answers the port allocation
+ * tasks without binding anything. Every call takes {@code latency} and every
+ * port checked is taken with probability {@code collisionRate}.
+ */
+final class FakeChannel implements Answer<Object> {
+	/** Range the fake agent picks ports from when asked for any free port. */
+	private static final int EPHEMERAL_START = 32768;
+	private static final int EPHEMERAL_END = 60999;
+
+	private final long latencyNanos;
+	private final double collisionRate;
+
+	private FakeChannel(long latencyNanos, double collisionRate) {
+		this.latencyNanos = latencyNanos;
+		this.collisionRate = collisionRate;
+	}
+
+	static VirtualChannel create(long latency, TimeUnit unit, double collisionRate) {
+		// stub only, so that the calls of a benchmark are not all recorded
+		return Mockito.mock(VirtualChannel.class, Mockito.withSettings().stubOnly()
+				.defaultAnswer(new FakeChannel(unit.toNanos(latency), collisionRate)));
+	}
+
+	public Object answer(InvocationOnMock invocation) throws Throwable {
+		if (!invocation.getMethod().getName().equals("call")) {
+			return null;
+		}
+		if (latencyNanos > 0) {
+			LockSupport.parkNanos(latencyNanos);
+		}
+		Object task = invocation.getArgument(0);
+		if (task instanceof ProbeTask) {
+			int[] ports = ((ProbeTask) task).ports;
+			int[] busy = new int[ports.length];
+			int n = 0;
+			for (int port : ports) {
+				if (collides()) {
+					busy[n++] = port;
+				}
+			}
+			return Arrays.copyOf(busy, n);
+		}
+		if (task instanceof AllocateTask) {
+			int port = ((AllocateTask) task).port;
+			if (port == 0) {
+				return ThreadLocalRandom.current().nextInt(EPHEMERAL_START, EPHEMERAL_END + 1);
+			}
+			if (collides()) {
+				throw new PortUnavailableException("Address already in use");
+			}
+			return port;
+		}
+		if (task instanceof BatchTask) {
+			int[] ports = ((BatchTask) task).ports;
+			int[] bound = new int[ports.length];
+			for (int i = 0; i < ports.length; i++) {
+				bound[i] = ports[i] == 0 || collides()
+						? ThreadLocalRandom.current().nextInt(EPHEMERAL_START, EPHEMERAL_END + 1) : ports[i];
+			}
+			return bound;
+		}
+		if (task instanceof ReleaseTask || task instanceof ListeningPortsTask) {
+			// no listing of bound ports, as on agents other than Linux
+			return null;
+		}
+		throw new UnsupportedOperationException(String.valueOf(task));
+	}
+
+	private boolean collides() {
+		return collisionRate > 0 && ThreadLocalRandom.current().nextDouble() < collisionRate;
+	}
+}
@@ -0,0 +1,90 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.util.Random;
+
+import org.jvnet.hudson.plugins.port_allocator.FreeIntervals.Fit;
+
+import junit.framework.TestCase;
+
+public class FreeIntervalsTest extends TestCase {
+
+	private FreeIntervals intervals() {
+		FreeIntervals free = new FreeIntervals(1, 65535);
+		for (int port = 60; port < 130; port++) {
+			free.remove(port);
+		}
+		free.remove(135);
+		return free;
+	}
+
+	/**
+	 * Ensure that the first gap that fits within the bounds is found.
+	 */
+	public void testFirstFit() {
+		FreeIntervals free = intervals();
+		Random rnd = new Random();
+		assertEquals(3, free.size());
+		assertEquals(10, free.find(10, 200, 50, Fit.FIRST, rnd));
+		assertEquals(136, free.find(20, 200, 50, Fit.FIRST, rnd));
+		assertEquals(130, free.find(64, 200, 5, Fit.FIRST, rnd));
+		assertEquals(-1, free.find(64, 184, 50, Fit.FIRST, rnd));
+		assertEquals(136, free.find(64, 185, 50, Fit.FIRST, rnd));
+	}
+
+	public void testBestFit() {
+		FreeIntervals free = intervals();
+		Random rnd = new Random();
+		assertEquals(130, free.find(1, 1000, 5, Fit.BEST, rnd));
+		assertEquals(1, free.find(1, 1000, 6, Fit.BEST, rnd));
+		assertEquals(136, free.find(1, 1000, 60, Fit.BEST, rnd));
+	}
+
+	public void testRandomFit() {
+		FreeIntervals free = intervals();
+		Random rnd = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			int first = free.find(1, 200, 5, Fit.RANDOM, rnd);
+			assertTrue(String.valueOf(first), first >= 1 && first + 4 <= 200);
+			for (int port = first; port < first + 5; port++) {
+				assertTrue(String.valueOf(first), free.contains(port));
+			}
+		}
+		assertEquals(-1, free.find(1, 200, 66, Fit.RANDOM, rnd));
+	}
+
+	public void testAddMerges() {
+		FreeIntervals free = intervals();
+		free.add(135);
+		assertEquals(2, free.size());
+		for (int port = 60; port < 130; port++) {
+			free.add(port);
+		}
+		assertEquals(1, free.size());
+		free.add(100);
+		assertEquals(1, free.size());
+
+		int[] ports = free.sample(5, 14, 10, new Random());
+		assertEquals(5, ports[0]);
+		assertEquals(14, ports[9]);
+	}
+
+	/**
+	 * Ensure that sampled ports are distinct free ports within the bounds.
+	 */
+	public void testSample() {
+		FreeIntervals free = intervals();
+		Random rnd = new Random();
+		for (int i = 0; i < 100; i++) {
+			int[] ports = free.sample(55, 140, 12, rnd);
+			assertEquals(12, ports.length);
+			for (int k = 0; k < ports.length; k++) {
+				assertTrue(ports[k] >= 55 && ports[k] <= 140);
+				assertTrue(free.contains(ports[k]));
+				assertTrue(k == 0 || ports[k - 1] < ports[k]);
+			}
+		}
+		// 55-59, 130-134 and 136-140 are free
+		assertEquals(15, free.sample(55, 140, 15, rnd).length);
+		assertNull(free.sample(55, 140, 16, rnd));
+	}
+}
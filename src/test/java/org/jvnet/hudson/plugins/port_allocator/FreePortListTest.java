@@ -0,0 +1,52 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+public class FreePortListTest extends TestCase {
+
+	public void testLeastRecentlyFreed() {
+		FreePortList list = FreePortList.create(Pool.Selection.LEAST_RECENTLY_FREED, 3);
+		list.add(3);
+		list.add(1);
+		list.add(2);
+		list.add(3);
+		assertEquals(3, list.poll());
+		list.add(3);
+		assertEquals(1, list.poll());
+		assertEquals(2, list.poll());
+		assertEquals(3, list.poll());
+		assertEquals(0, list.poll());
+	}
+
+	public void testRoundRobin() {
+		FreePortList list = FreePortList.create(Pool.Selection.ROUND_ROBIN, 3);
+		list.add(3);
+		list.add(1);
+		list.add(2);
+		assertEquals(1, list.poll());
+		list.add(1);
+		assertEquals(2, list.poll());
+		assertEquals(3, list.poll());
+		list.add(2);
+		assertEquals(1, list.poll());
+		assertEquals(2, list.poll());
+		assertEquals(0, list.poll());
+	}
+
+	public void testRandom() {
+		FreePortList list = FreePortList.create(Pool.Selection.RANDOM, 2);
+		for (int port = 1; port <= 100; port++) {
+			list.add(port);
+			list.add(port);
+		}
+		BitSet seen = new BitSet();
+		int port;
+		while ((port = list.poll()) != 0) {
+			assertFalse(String.valueOf(port), seen.get(port));
+			seen.set(port);
+		}
+		assertEquals(100, seen.cardinality());
+	}
+}
@@ -0,0 +1,98 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import org.mockito.Mockito;
+
+import junit.framework.TestCase;
+
+public class FreePortNodeDispatcherTest extends TestCase {
+
+	private Node mockNode(String name, int idle) {
+		return mockNode(name, idle, true);
+	}
+
+	private Node mockNode(String name, int idle, boolean online) {
+		final Computer computer = Mockito.mock(Computer.class);
+		Mockito.when(computer.getName()).thenReturn(getName() + "-" + name);
+		Mockito.when(computer.isOnline()).thenReturn(online);
+		Mockito.when(computer.countIdle()).thenReturn(idle);
+		final Node node = Mockito.mock(Node.class);
+		Mockito.when(node.toComputer()).thenReturn(computer);
+		Mockito.when(node.getDisplayName()).thenReturn(name);
+		return node;
+	}
+
+	private static Queue.BuildableItem mockItem(long id) {
+		final Queue.BuildableItem item = Mockito.mock(Queue.BuildableItem.class);
+		Mockito.when(item.getId()).thenReturn(id);
+		return item;
+	}
+
+	/**
+	 * Ensure that a build is only steered away to an idle node that has its ports free
+	 * and that the other dispatchers let it run on.
+	 * @throws Throwable
+	 */
+	public void testSteersToNodeWithFreePorts() throws Throwable {
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		final Node busy = mockNode("busy", 1);
+		final Node free = mockNode("free", 1);
+		final Node full = mockNode("full", 0);
+		PortAllocationManager.getManager(busy.toComputer()).allocate(build, 8080);
+		final PortRequirements requirements = new PortRequirements(new int[] {8080}, Collections.<Pool,Integer>emptyMap());
+		final List<Node> nodes = Arrays.asList(busy, free, full);
+		final FreePortNodeDispatcher dispatcher = new FreePortNodeDispatcher();
+		final List<QueueTaskDispatcher> none = Collections.emptyList();
+
+		CauseOfBlockage cause = dispatcher.canTake(busy, mockItem(1), requirements, nodes, none);
+		assertTrue(cause instanceof FreePortNodeDispatcher.PortsFreeElsewhere);
+		assertEquals("Its ports are busy here but free on free", cause.getShortDescription());
+		assertNull(dispatcher.canTake(free, mockItem(1), requirements, nodes, none));
+		assertNull("no manager for nodes without ports", PortAllocationManager.getExistingManager(free.toComputer()));
+
+		// another dispatcher keeps the build off the node with free ports, so it stays where it is
+		QueueTaskDispatcher refuseFree = new QueueTaskDispatcher() {
+			@Override
+			public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+				return node == free ? new FreePortNodeDispatcher.PortsFreeElsewhere("nowhere") : null;
+			}
+		};
+		assertNull(dispatcher.canTake(busy, mockItem(2), requirements, nodes, Collections.singletonList(refuseFree)));
+
+		// the node with free ports does not take the build itself
+		final Queue.BuildableItem item = mockItem(3);
+		Mockito.when(free.canTake(item)).thenReturn(new FreePortNodeDispatcher.PortsFreeElsewhere("nowhere"));
+		assertNull(dispatcher.canTake(busy, item, requirements, nodes, none));
+
+		// once the port is free again, the build may go anywhere
+		PortAllocationManager.getManager(busy.toComputer()).free(8080);
+		assertNull(dispatcher.canTake(busy, mockItem(4), requirements, nodes, none));
+	}
+
+	/**
+	 * Ensure that a build is not steered to a node that is offline, even with its ports free.
+	 * @throws Throwable
+	 */
+	public void testSkipsOfflineNodes() throws Throwable {
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		final Node busy = mockNode("busy", 1);
+		final Node offline = mockNode("offline", 1, false);
+		PortAllocationManager.getManager(busy.toComputer()).allocate(build, 8080);
+		final PortRequirements requirements = new PortRequirements(new int[] {8080}, Collections.<Pool,Integer>emptyMap());
+		final List<QueueTaskDispatcher> none = Collections.emptyList();
+
+		assertNull(new FreePortNodeDispatcher().canTake(busy, mockItem(1), requirements, Arrays.asList(busy, offline), none));
+
+		PortAllocationManager.getManager(busy.toComputer()).free(8080);
+	}
+}
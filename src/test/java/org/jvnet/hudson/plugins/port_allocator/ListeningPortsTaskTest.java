@@ -0,0 +1,22 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+public class ListeningPortsTaskTest extends TestCase {
+
+	public void testParse() throws Exception {
+		String table =
+				"  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n"
+				+ "   0: 0100007F:1F90 00000000:0000 0A 00000000:00000000 00:00000000 00000000  1000        0 1 1\n"
+				+ "   1: 0A00020F:D431 5DB8D822:01BB 01 00000000:00000000 00:00000000 00000000  1000        0 2 1\n"
+				+ "   2: 0A00020F:D432 5DB8D822:01BB 06 00000000:00000000 00:00000000 00000000     0        0 0 3\n"
+				+ "   3: 00000000000000000000000000000000:0050 00000000000000000000000000000000:0000 0A 0 0 0 0 0 1 1\n";
+		BitSet ports = new BitSet();
+		ListeningPortsTask.parse(new BufferedReader(new StringReader(table)), ports);
+		assertEquals("{80, 8080, 54321}", ports.toString());
+	}
+}
@@ -0,0 +1,76 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import hudson.remoting.Callable;
+
+import junit.framework.TestCase;
+
+public class ParallelCleanUpTaskTest extends TestCase {
+
+	/**
+	 * Ensure that clean up tasks run concurrently, that failures are reported
+	 * and that a hung task is abandoned at the deadline.
+	 * @throws Exception
+	 */
+	public void testDeadline() throws Exception {
+		List<Callable<Void,IOException>> tasks = Arrays.asList(
+				sleeper(100, false), sleeper(100, true), sleeper(60000, false));
+
+		long start = System.currentTimeMillis();
+		String[] results = new ParallelCleanUpTask(new String[] {"A=1", "B=2", "C=3"}, tasks, 1000).call();
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue(results[0], results[0].startsWith("A=1 cleaned up in "));
+		assertTrue(results[1], results[1].startsWith("B=2 failed in "));
+		assertTrue(results[1], results[1].endsWith("boom"));
+		assertEquals("C=3 timed out after 1000 ms", results[2]);
+		assertTrue("took " + elapsed + " ms", elapsed < 5000);
+	}
+
+	/**
+	 * Ensure that a port with a clean up task but no {@link Port#free()} of its own
+	 * is still freed, through {@link Port#cleanUp()}.
+	 * @throws Exception
+	 */
+	public void testFreeDefaultsToCleanUp() throws Exception {
+		final int[] cleanUps = new int[1];
+		Port port = new Port(new DefaultPortType("X")) {
+			public int get() {
+				return 1;
+			}
+
+			public void cleanUp() {
+				cleanUps[0]++;
+			}
+
+			public Callable<Void,IOException> getCleanUpTask() {
+				return sleeper(0, false);
+			}
+		};
+
+		ParallelCleanUpTask.cleanUp(Arrays.asList(port), null, null);
+		assertEquals(1, cleanUps[0]);
+	}
+
+	private static Callable<Void,IOException> sleeper(final long millis, final boolean fail) {
+		return new Callable<Void,IOException>() {
+			public Void call() throws IOException {
+				try {
+					Thread.sleep(millis);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				if (fail) {
+					throw new IOException("boom");
+				}
+				return null;
+			}
+
+			public void checkRoles(org.jenkinsci.remoting.RoleChecker checker) throws SecurityException {
+			}
+		};
+	}
+}
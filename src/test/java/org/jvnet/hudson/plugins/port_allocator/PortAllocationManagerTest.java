@@ -1,6 +1,14 @@
 package org.jvnet.hudson.plugins.port_allocator;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import hudson.model.AbstractBuild;
 import hudson.model.Computer;
@@ -8,8 +16,11 @@ import hudson.remoting.Callable;
 import hudson.remoting.VirtualChannel;
 
 import org.jvnet.hudson.plugins.port_allocator.PortAllocationManager;
-import org.jvnet.hudson.plugins.port_allocator.PortAllocationManager.PortUnavailableException;
+import org.jvnet.hudson.plugins.port_allocator.PortAllocationManager.BatchTask;
+import org.jvnet.hudson.plugins.port_allocator.PortAllocationManager.ProbeTask;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import junit.framework.TestCase;
 
@@ -21,13 +32,22 @@ public class PortAllocationManagerTest extends TestCase {
 		public Exception failure;
 	}
 
+	/**
+	 * Managers are kept by node name, so give each test a node of its own.
+	 */
+	private Computer mockComputer() {
+		final Computer computer = Mockito.mock(Computer.class);
+		Mockito.when(computer.getName()).thenReturn(getName());
+		return computer;
+	}
+
 	/**
 	 * Test logical allocation of ports.
 	 * This does not actually try to allocate the ports.
 	 * @throws Exception
 	 */
 	public void testAllocate() throws Exception {
-		final Computer computer = Mockito.mock(Computer.class);
+		final Computer computer = mockComputer();
 		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
 		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
 
@@ -114,7 +134,7 @@ public class PortAllocationManagerTest extends TestCase {
 	 */
 	public void testAllocateRandom() throws Throwable {
 		final VirtualChannel channel = Mockito.mock(VirtualChannel.class);
-		final Computer computer = Mockito.mock(Computer.class);
+		final Computer computer = mockComputer();
 		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
 
 		final int mockPort = 42;
@@ -134,42 +154,721 @@ public class PortAllocationManagerTest extends TestCase {
 	}
 
 	/**
-	 * Ensure that port allocation invokes the remote callable and
-	 * passes back the port allocated by the remote node.
+	 * Ensure that a consecutive range is checked with one remote call
+	 * per candidate window and that windows with a taken port are skipped.
 	 * @throws Throwable
 	 */
 	public void testAllocatePortRange() throws Throwable {
 		final VirtualChannel channel = Mockito.mock(VirtualChannel.class);
-		final Computer computer = Mockito.mock(Computer.class);
+		final Computer computer = mockComputer();
 		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
 
 		final int mockStart = 42;
 		final int mockEnd = 48;
-		final int mockPort = 44;
+		final int mockBusy = 44;
 		Mockito.when(computer.getChannel()).thenReturn(channel);
-
-		Mockito.when(channel.call(Mockito.isNotNull()))
-								// First port succeeds
-								.thenReturn(mockPort)
-								// Second port fails
-								.thenThrow(PortUnavailableException.class)
-								// Better luck next time around
-								.thenReturn(mockPort + 2)
-								.thenReturn(mockPort + 3);
+		Mockito.when(channel.call(Mockito.any(ProbeTask.class))).thenAnswer(busyPorts(mockBusy));
 
 		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
 
 		int[] ports = manager.allocatePortRange(build, mockStart, mockEnd, 2, true);
 		assertNotNull(ports);
 		assertEquals(2, ports.length);
-		assertEquals(mockPort + 2, ports[0]);
-		assertEquals(mockPort + 3, ports[1]);
-		// We cannot confirm that second and subsequent allocations of port 42
-		// allocation will succeed because mocking allocatePort and/or Callable is
-		// difficult.
+		assertEquals(ports[0] + 1, ports[1]);
+		assertTrue(ports[0] >= mockStart);
+		assertTrue(ports[1] <= mockEnd);
+		assertTrue(ports[0] != mockBusy && ports[1] != mockBusy);
+		assertFalse(manager.isFree(ports[0]));
+		assertFalse(manager.isFree(ports[1]));
 
 		// Ensure that free port continues without problems.
 		manager.free(ports[0]);
 		manager.free(ports[1]);
 	}
+
+	/**
+	 * Ensure that a free window is obtained with a single remote call.
+	 * @throws Throwable
+	 */
+	public void testAllocatePortRangeSingleCall() throws Throwable {
+		final VirtualChannel channel = Mockito.mock(VirtualChannel.class);
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+
+		Mockito.when(computer.getChannel()).thenReturn(channel);
+		Mockito.when(channel.call(Mockito.any(ProbeTask.class))).thenAnswer(busyPorts());
+
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+
+		int[] ports = manager.allocatePortRange(build, 1000, 1999, 10, true);
+		assertEquals(10, ports.length);
+		Mockito.verify(channel, Mockito.times(1)).call(Mockito.any(ProbeTask.class));
+
+		for (int port : ports) {
+			manager.free(port);
+		}
+	}
+
+	/**
+	 * Ensure that ports listed as bound by the node are skipped without probing them.
+	 * @throws Throwable
+	 */
+	public void testAllocatePortRangeFromListing() throws Throwable {
+		final VirtualChannel channel = Mockito.mock(VirtualChannel.class);
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+
+		BitSet bound = new BitSet();
+		bound.set(1002);
+		Mockito.when(computer.getChannel()).thenReturn(channel);
+		Mockito.when(channel.call(Mockito.any(ListeningPortsTask.class))).thenReturn(bound.toLongArray());
+
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+
+		int[] ports = manager.allocatePortRange(build, 1000, 1009, 5, true);
+		assertEquals(5, ports.length);
+		assertTrue(ports[0] >= 1003);
+		Mockito.verify(channel, Mockito.never()).call(Mockito.any(ProbeTask.class));
+
+		try {
+			manager.allocatePortRange(build, 1000, 1009, 3, true);
+			fail();
+		} catch (IOException e) {
+			// expected, as 1002 is taken
+		}
+	}
+
+	/**
+	 * Ensure that a range allocation gives up after a bounded number of probes
+	 * even when taken ports are not left out at all.
+	 * @throws Throwable
+	 */
+	public void testAllocatePortRangeGivesUp() throws Throwable {
+		final VirtualChannel channel = Mockito.mock(VirtualChannel.class);
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+
+		Mockito.when(computer.getChannel()).thenReturn(channel);
+		Mockito.when(channel.call(Mockito.any(ProbeTask.class))).thenAnswer(busyPorts(3000));
+
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+		long timeout = PortAllocationManager.BUSY_PORT_TIMEOUT;
+		PortAllocationManager.BUSY_PORT_TIMEOUT = 0;
+		try {
+			manager.allocatePortRange(build, 3000, 3000, 1, true);
+			fail("3000 is taken");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			PortAllocationManager.BUSY_PORT_TIMEOUT = timeout;
+		}
+		assertTrue(manager.isFree(3000));
+	}
+
+	/**
+	 * Ensure that ports listed as bound for a short time come back into circulation
+	 * even when ports reported taken by a probe are left out for longer.
+	 * @throws Throwable
+	 */
+	public void testBusyPortsExpireInDeadlineOrder() throws Throwable {
+		final VirtualChannel channel = Mockito.mock(VirtualChannel.class);
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		final long[][] bound = {null};
+
+		Mockito.when(computer.getChannel()).thenReturn(channel);
+		Mockito.when(channel.call(Mockito.any(ProbeTask.class))).thenAnswer(busyPorts(2000));
+		Mockito.when(channel.call(Mockito.any(ListeningPortsTask.class))).thenAnswer(new Answer<long[]>() {
+			public long[] answer(InvocationOnMock invocation) throws IOException {
+				if (bound[0] == null) {
+					throw new IOException("listing failed");
+				}
+				return bound[0];
+			}
+		});
+
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+		long ttl = PortAllocationManager.LISTENING_PORTS_TTL;
+		PortAllocationManager.LISTENING_PORTS_TTL = 50;
+		try {
+			// probed, and left out for BUSY_PORT_TIMEOUT
+			try {
+				manager.allocatePortRange(build, 2000, 2000, 1, true);
+				fail("2000 is taken");
+			} catch (IOException e) {
+				// expected
+			}
+
+			// listed, and left out until the next listing
+			BitSet b = new BitSet();
+			b.set(2001);
+			bound[0] = b.toLongArray();
+			try {
+				manager.allocatePortRange(build, 2001, 2001, 1, true);
+				fail("2001 is bound");
+			} catch (IOException e) {
+				// expected
+			}
+
+			Thread.sleep(100);
+			bound[0] = new long[0];
+			assertEquals(2001, manager.allocatePortRange(build, 2001, 2001, 1, true)[0]);
+		} finally {
+			PortAllocationManager.LISTENING_PORTS_TTL = ttl;
+		}
+	}
+
+	/**
+	 * Ensure that non-consecutive ranges avoid taken ports and that
+	 * the allocation fails when not enough ports are left.
+	 * @throws Throwable
+	 */
+	public void testAllocateNonConsecutivePortRange() throws Throwable {
+		final VirtualChannel channel = Mockito.mock(VirtualChannel.class);
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+
+		Mockito.when(computer.getChannel()).thenReturn(channel);
+		Mockito.when(channel.call(Mockito.any(ProbeTask.class))).thenAnswer(busyPorts(43, 45));
+
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+
+		int[] ports = manager.allocatePortRange(build, 42, 46, 3, false);
+		Arrays.sort(ports);
+		assertEquals(42, ports[0]);
+		assertEquals(44, ports[1]);
+		assertEquals(46, ports[2]);
+
+		try {
+			manager.allocatePortRange(build, 42, 46, 1, false);
+			fail("all remaining ports are taken");
+		} catch (IOException e) {
+			// expected
+		}
+		for (int port : ports) {
+			assertFalse(manager.isFree(port));
+			manager.free(port);
+		}
+	}
+
+	/**
+	 * Ensure that the manager is not locked while a range is being probed
+	 * on the node, and that the ports under probe are reserved meanwhile.
+	 * @throws Throwable
+	 */
+	public void testProbeDoesNotHoldLock() throws Throwable {
+		final VirtualChannel channel = Mockito.mock(VirtualChannel.class);
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		final CountDownLatch probing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		Mockito.when(computer.getChannel()).thenReturn(channel);
+		Mockito.when(channel.call(Mockito.any(ProbeTask.class))).thenAnswer(new Answer<int[]>() {
+			public int[] answer(InvocationOnMock invocation) throws InterruptedException {
+				probing.countDown();
+				release.await();
+				return new int[0];
+			}
+		});
+
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+		final int[][] result = new int[1][];
+		Thread runner = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result[0] = manager.allocatePortRange(build, 2000, 2001, 2, true);
+				} catch (Exception e) {
+					// reported through the missing result
+				}
+			}
+		};
+		runner.setDaemon(true);
+		runner.start();
+
+		assertTrue("probe was not started", probing.await(10, TimeUnit.SECONDS));
+		// would block if the probe held the lock
+		assertFalse(manager.isFree(2000));
+		assertFalse(manager.isFree(2001));
+		manager.free(3000);
+		release.countDown();
+		runner.join(10000);
+
+		assertNotNull(result[0]);
+		assertEquals(2000, result[0][0]);
+		manager.free(2000);
+		manager.free(2001);
+		assertTrue(manager.isFree(2000));
+	}
+
+	/**
+	 * Ensure that occupancy, owners and usage can be read while the manager is locked.
+	 * @throws Throwable
+	 */
+	public void testReadsDoNotWaitForLock() throws Throwable {
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		Mockito.when(build.getNumber()).thenReturn(7);
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+		final Pool pool = new Pool();
+		pool.name = "READ";
+		pool.ports = "4100,4101";
+		manager.allocate(build, 4000);
+		manager.allocate(build, 4063);
+		manager.allocate(build, 4064);
+		manager.allocateFromPool(build, pool);
+
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch unlock = new CountDownLatch(1);
+		Thread holder = new Thread() {
+			@Override
+			public void run() {
+				synchronized (manager) {
+					locked.countDown();
+					try {
+						unlock.await();
+					} catch (InterruptedException e) {
+						// let go
+					}
+				}
+			}
+		};
+		holder.setDaemon(true);
+		holder.start();
+		assertTrue(locked.await(10, TimeUnit.SECONDS));
+		try {
+			// would block if the reads took the lock
+			assertFalse(manager.isFree(4063));
+			assertTrue(manager.isFree(4062));
+			assertTrue(manager.isFree(70000));
+			assertEquals(" #7", manager.getOwner(4064));
+			assertNull(manager.getOwner(4001));
+			assertEquals("[4000, 4063, 4064, 4100]", manager.getAllocations().keySet().toString());
+			assertEquals(4, manager.getPortsInUse());
+			assertEquals(Integer.valueOf(1), manager.getPoolPortsInUse().get("READ"));
+		} finally {
+			unlock.countDown();
+		}
+		holder.join(10000);
+
+		manager.free(4063);
+		assertTrue(manager.isFree(4063));
+		assertFalse(manager.getAllocations().containsKey(4063));
+	}
+
+	/**
+	 * Ensure that asynchronous requests are served in arrival order, that a
+	 * withdrawn request is skipped and that withdrawing a granted one frees the port.
+	 * @throws Throwable
+	 */
+	public void testAllocateAsync() throws Throwable {
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+
+		CompletableFuture<Integer> first = manager.allocateAsync(build, 3200);
+		CompletableFuture<Integer> second = manager.allocateAsync(build, 3200);
+		CompletableFuture<Integer> third = manager.allocateAsync(build, 3200);
+		assertEquals(Integer.valueOf(3200), first.getNow(0));
+		assertFalse(second.isDone());
+
+		manager.cancel(second);
+		manager.free(3200);
+		assertTrue(second.isCancelled());
+		assertEquals(Integer.valueOf(3200), third.getNow(0));
+		assertFalse(manager.isFree(3200));
+
+		manager.cancel(third);
+		assertTrue(manager.isFree(3200));
+	}
+
+	public void testManagerFollowsNode() throws Exception {
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+		manager.allocate(build, 55);
+
+		// a reconnected agent gets a new computer for the same node
+		final Computer reconnected = mockComputer();
+		assertSame(manager, PortAllocationManager.getManager(reconnected));
+		assertFalse(manager.isFree(55));
+
+		PortAllocationManager.remove(getName());
+		assertNotSame(manager, PortAllocationManager.getManager(reconnected));
+	}
+
+	public void testReap() throws Exception {
+		final Computer computer = mockComputer();
+		final AbstractBuild running = Mockito.mock(AbstractBuild.class);
+		final AbstractBuild finished = Mockito.mock(AbstractBuild.class);
+		Mockito.when(running.getNumber()).thenReturn(1);
+		Mockito.when(running.isBuilding()).thenReturn(true);
+		Mockito.when(finished.getNumber()).thenReturn(2);
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+
+		manager.allocate(running, 55);
+		manager.allocate(finished, 56);
+		manager.allocate(finished, 57);
+		CompletableFuture<Integer> waiting = manager.allocateAsync(running, 56);
+
+		assertEquals(0, manager.reap(running));
+		assertEquals(2, manager.reap(null));
+		assertEquals(Integer.valueOf(56), waiting.getNow(0));
+		assertFalse(manager.isFree(55));
+		assertTrue(manager.isFree(57));
+		assertEquals(" #1", manager.getOwner(56));
+		assertNull(manager.getOwner(57));
+		assertEquals(0, manager.reap(null));
+	}
+
+	/**
+	 * Ensure that fixed, preferred and random ports are allocated together
+	 * with a single remote call, and that taken preferred ports are replaced.
+	 * @throws Throwable
+	 */
+	public void testAllocateAll() throws Throwable {
+		final VirtualChannel channel = Mockito.mock(VirtualChannel.class);
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+
+		Mockito.when(computer.getChannel()).thenReturn(channel);
+		Mockito.when(channel.call(Mockito.any(BatchTask.class))).thenAnswer(boundPorts(3001));
+
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+
+		int[] ports = manager.allocateAll(build, new int[] {3100, 0, 0, 0}, new int[] {0, 3000, 3001, 0});
+		assertEquals(3100, ports[0]);
+		assertEquals(3000, ports[1]);
+		assertTrue(ports[2] != 3001 && ports[2] > 0);
+		assertTrue(ports[3] > 0 && ports[3] != ports[2]);
+		Mockito.verify(channel, Mockito.times(1)).call(Mockito.any(BatchTask.class));
+		for (int port : ports) {
+			assertFalse(manager.isFree(port));
+			manager.free(port);
+		}
+	}
+
+	/**
+	 * Ensure that nothing stays allocated when a batch fails.
+	 * @throws Throwable
+	 */
+	public void testAllocateAllRollsBack() throws Throwable {
+		final VirtualChannel channel = Mockito.mock(VirtualChannel.class);
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+
+		Mockito.when(computer.getChannel()).thenReturn(channel);
+		Mockito.when(channel.call(Mockito.any(BatchTask.class))).thenThrow(new IOException("agent went away"));
+
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+
+		try {
+			manager.allocateAll(build, new int[] {3100, 0}, new int[] {0, 3000});
+			fail("the node could not be reached");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(manager.isFree(3100));
+		assertTrue(manager.isFree(3000));
+		assertEquals(0, manager.getPortsInUse());
+	}
+
+	/**
+	 * Ensure that builds waiting for a pool are served in arrival order
+	 * and that every freed port wakes up exactly one of them.
+	 * @throws Throwable
+	 */
+	public void testAllocateFromPool() throws Throwable {
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+		final Pool pool = new Pool();
+		pool.name = "TEST";
+		pool.ports = "100,101";
+
+		assertEquals(100, manager.allocateFromPool(build, pool));
+		assertEquals(101, manager.allocateFromPool(build, pool));
+
+		final BlockingQueue<String> granted = new LinkedBlockingQueue<String>();
+		Thread first = poolWaiter(manager, build, pool, "first", granted);
+		waitUntilBlocked(first);
+		Thread second = poolWaiter(manager, build, pool, "second", granted);
+		waitUntilBlocked(second);
+
+		manager.free(101);
+		assertEquals("first:101", granted.poll(10, TimeUnit.SECONDS));
+		assertNull(granted.poll(200, TimeUnit.MILLISECONDS));
+
+		manager.free(100);
+		assertEquals("second:100", granted.poll(10, TimeUnit.SECONDS));
+		assertFalse(manager.isFree(100));
+		assertFalse(manager.isFree(101));
+		assertTrue(manager.getPoolWaitMillis("TEST") > 0);
+	}
+
+	/**
+	 * Ensure that pool capacity accounts for ports taken by any means
+	 * and for builds already waiting.
+	 * @throws Throwable
+	 */
+	public void testHasFreePoolPorts() throws Throwable {
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+		final Pool pool = new Pool();
+		pool.name = "CAPACITY";
+		pool.ports = "200-202";
+
+		assertTrue(manager.hasFreePoolPorts(pool, 3));
+		manager.allocate(build, 201);
+		assertTrue("nothing known before the pool is used", manager.hasFreePoolPorts(pool, 3));
+
+		int first = manager.allocateFromPool(build, pool);
+		assertFalse(manager.hasFreePoolPorts(pool, 2));
+		assertTrue(manager.hasFreePoolPorts(pool, 1));
+		manager.allocateFromPool(build, pool);
+		assertFalse(manager.hasFreePoolPorts(pool, 1));
+		CompletableFuture<int[]> waiting = manager.allocateFromPoolAsync(build, pool, 1, false);
+
+		manager.free(201);
+		assertEquals(201, waiting.getNow(null)[0]);
+		assertFalse(manager.hasFreePoolPorts(pool, 1));
+		assertEquals(Integer.valueOf(3), manager.getPoolPortsInUse().get("CAPACITY"));
+
+		// a build waiting for more ports than are free goes first
+		manager.free(first);
+		CompletableFuture<int[]> two = manager.allocateFromPoolAsync(build, pool, 2, false);
+		assertFalse(manager.hasFreePoolPorts(pool, 1));
+		manager.cancel(two);
+		assertTrue(manager.hasFreePoolPorts(pool, 1));
+	}
+
+	/**
+	 * Ensure that a build asking for more ports than its pool holds is not kept in the queue,
+	 * but fails to allocate them.
+	 * @throws Throwable
+	 */
+	public void testPoolTooSmall() throws Throwable {
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+		final Pool pool = new Pool();
+		pool.name = "SMALL";
+		pool.ports = "300-301";
+		manager.allocateFromPool(build, pool);
+
+		assertNull(new PortRequirements(new int[0], Collections.singletonMap(pool, 3)).getExhaustedPool(manager));
+		assertSame(pool, new PortRequirements(new int[0], Collections.singletonMap(pool, 2)).getExhaustedPool(manager));
+		try {
+			manager.allocateFromPool(build, pool, 3, false);
+			fail("the pool only has 2 ports");
+		} catch (IllegalArgumentException e) {
+			assertEquals("Pool SMALL does not have 3 ports", e.getMessage());
+		}
+	}
+
+	/**
+	 * Ensure that a pool port handed over to a build waiting for it as a fixed port
+	 * is counted once in the usage of the pool.
+	 * @throws Throwable
+	 */
+	public void testFixedPortWaiterOnPoolPort() throws Throwable {
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+		final Pool pool = new Pool();
+		pool.name = "MIXED";
+		pool.ports = "500,501";
+
+		assertEquals(500, manager.allocateFromPool(build, pool));
+		CompletableFuture<Integer> waiting = manager.allocateAsync(build, 500);
+		assertFalse(waiting.isDone());
+
+		manager.free(500);
+		assertEquals(Integer.valueOf(500), waiting.getNow(0));
+		assertEquals(Integer.valueOf(1), manager.getPoolPortsInUse().get("MIXED"));
+		assertTrue(manager.hasFreePoolPorts(pool, 1));
+		assertFalse(manager.hasFreePoolPorts(pool, 2));
+
+		manager.free(500);
+		assertEquals(Integer.valueOf(0), manager.getPoolPortsInUse().get("MIXED"));
+		assertTrue(manager.hasFreePoolPorts(pool, 2));
+	}
+
+	/**
+	 * Ensure that several ports of a pool are granted all at once, consecutive if asked,
+	 * and that builds asking for fewer ports do not get ahead of one waiting for many.
+	 * @throws Throwable
+	 */
+	public void testAllocateSeveralFromPool() throws Throwable {
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+		final Pool pool = new Pool();
+		pool.name = "LEASE";
+		pool.ports = "300,302-304";
+
+		int[] ports = manager.allocateFromPool(build, pool, 3, true);
+		assertEquals("[302, 303, 304]", Arrays.toString(ports));
+		try {
+			manager.allocateFromPoolAsync(build, pool, 4, true);
+			fail("the pool has no 4 consecutive ports");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		// the large request waits without holding the free port, and the small one waits behind it
+		CompletableFuture<int[]> large = manager.allocateFromPoolAsync(build, pool, 2, false);
+		CompletableFuture<int[]> small = manager.allocateFromPoolAsync(build, pool, 1, false);
+		assertFalse(large.isDone());
+		assertFalse(small.isDone());
+		assertTrue(manager.isFree(300));
+		assertFalse(manager.hasFreePoolPorts(pool, 1));
+
+		manager.free(303);
+		int[] granted = large.getNow(null);
+		assertNotNull(granted);
+		Arrays.sort(granted);
+		assertEquals("[300, 303]", Arrays.toString(granted));
+		assertFalse(small.isDone());
+
+		// withdrawing a request lets those behind it go
+		CompletableFuture<int[]> blocked = manager.allocateFromPoolAsync(build, pool, 3, false);
+		CompletableFuture<int[]> behind = manager.allocateFromPoolAsync(build, pool, 1, false);
+		manager.free(304);
+		assertEquals(304, small.getNow(null)[0]);
+		manager.free(302);
+		assertFalse(behind.isDone());
+		manager.cancel(blocked);
+		assertEquals(302, behind.getNow(null)[0]);
+	}
+
+	private static Thread poolWaiter(final PortAllocationManager manager, final AbstractBuild build,
+			final Pool pool, final String name, final BlockingQueue<String> granted) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					granted.add(name + ":" + manager.allocateFromPool(build, pool));
+				} catch (InterruptedException e) {
+					granted.add(name + ":interrupted");
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	private static void waitUntilBlocked(Thread t) throws InterruptedException {
+		for (int i = 0; i < 1000 && t.getState() != Thread.State.WAITING; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(Thread.State.WAITING, t.getState());
+	}
+
+	/**
+	 * Ensure that builds waiting for a fixed port get it in arrival order
+	 * and that freeing a port does not wake up waiters of other ports.
+	 * @throws Throwable
+	 */
+	public void testAllocateInArrivalOrder() throws Throwable {
+		final Computer computer = mockComputer();
+		final AbstractBuild build = Mockito.mock(AbstractBuild.class);
+		final PortAllocationManager manager = PortAllocationManager.getManager(computer);
+
+		manager.allocate(build, 8080);
+		manager.allocate(build, 8081);
+
+		final BlockingQueue<String> granted = new LinkedBlockingQueue<String>();
+		Thread first = fixedWaiter(manager, build, 8080, "first", granted);
+		waitUntilBlocked(first);
+		Thread other = fixedWaiter(manager, build, 8081, "other", granted);
+		waitUntilBlocked(other);
+		Thread second = fixedWaiter(manager, build, 8080, "second", granted);
+		waitUntilBlocked(second);
+
+		manager.free(8080);
+		assertEquals("first:8080", granted.poll(10, TimeUnit.SECONDS));
+		assertNull(granted.poll(200, TimeUnit.MILLISECONDS));
+		assertEquals(Thread.State.WAITING, other.getState());
+		assertFalse(manager.isFree(8080));
+
+		manager.free(8080);
+		assertEquals("second:8080", granted.poll(10, TimeUnit.SECONDS));
+
+		other.interrupt();
+		assertEquals("other:interrupted", granted.poll(10, TimeUnit.SECONDS));
+		manager.free(8081);
+		assertTrue(manager.isFree(8081));
+		manager.free(8080);
+	}
+
+	private static Thread fixedWaiter(final PortAllocationManager manager, final AbstractBuild build,
+			final int port, final String name, final BlockingQueue<String> granted) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					granted.add(name + ":" + manager.allocate(build, port));
+				} catch (InterruptedException e) {
+					granted.add(name + ":interrupted");
+				} catch (IOException e) {
+					granted.add(name + ":" + e);
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Simulates a node on which the given ports are taken and that hands out
+	 * ports from 40000 upwards instead.
+	 */
+	private static Answer<int[]> boundPorts(final int... taken) {
+		return new Answer<int[]>() {
+			private int next = 40000;
+
+			public int[] answer(InvocationOnMock invocation) {
+				BatchTask task = invocation.getArgument(0);
+				int[] bound = new int[task.ports.length];
+				for (int i = 0; i < bound.length; i++) {
+					bound[i] = task.ports[i];
+					for (int t : taken) {
+						if (bound[i] == t) {
+							bound[i] = 0;
+						}
+					}
+					if (bound[i] == 0) {
+						bound[i] = next++;
+					}
+				}
+				return bound;
+			}
+		};
+	}
+
+	/**
+	 * Simulates a node on which the given ports are taken.
+	 */
+	private static Answer<int[]> busyPorts(final int... taken) {
+		return new Answer<int[]>() {
+			public int[] answer(InvocationOnMock invocation) {
+				ProbeTask task = invocation.getArgument(0);
+				int[] busy = new int[task.ports.length];
+				int n = 0;
+				for (int port : task.ports) {
+					for (int t : taken) {
+						if (port == t) {
+							busy[n++] = port;
+						}
+					}
+				}
+				return Arrays.copyOf(busy, n);
+			}
+		};
+	}
 }
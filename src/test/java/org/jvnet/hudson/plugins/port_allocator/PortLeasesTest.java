@@ -0,0 +1,79 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import junit.framework.TestCase;
+
+public class PortLeasesTest extends TestCase {
+
+	/**
+	 * Ensure that a leased port cannot be bound by anyone else until it is released.
+	 * @throws Exception
+	 */
+	public void testLeaseAndRelease() throws Exception {
+		int port = PortLeases.lease(0, 60000);
+		assertTrue(port > 0);
+		assertFalse(isBindable(port));
+
+		PortLeases.release(port);
+		assertTrue(isBindable(port));
+
+		// releasing twice does no harm
+		PortLeases.release(port);
+	}
+
+	/**
+	 * Ensure that a port taken by another process cannot be leased.
+	 * @throws Exception
+	 */
+	public void testLeaseBusyPort() throws Exception {
+		ServerSocket taken = new ServerSocket(0);
+		try {
+			PortLeases.lease(taken.getLocalPort(), 60000);
+			fail("the port is taken");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			taken.close();
+		}
+	}
+
+	/**
+	 * Ensure that a lease that is never released expires after its timeout.
+	 * @throws Exception
+	 */
+	public void testExpiry() throws Exception {
+		int port = PortLeases.lease(0, 100);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!isBindable(port)) {
+			assertTrue("the lease of " + port + " did not expire", System.currentTimeMillis() < deadline);
+			Thread.sleep(50);
+		}
+	}
+
+	/**
+	 * Ensure that the expiry of an old lease does not end a newer lease of the same port.
+	 * @throws Exception
+	 */
+	public void testExpiryOfOldLease() throws Exception {
+		int port = PortLeases.lease(0, 100);
+		PortLeases.release(port);
+		assertEquals(port, PortLeases.lease(port, 60000));
+		try {
+			Thread.sleep(500);
+			assertFalse(isBindable(port));
+		} finally {
+			PortLeases.release(port);
+		}
+	}
+
+	private static boolean isBindable(int port) {
+		try {
+			new ServerSocket(port).close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class PortRangeListTest extends TestCase {
+
+	public void testParseList() {
+		PortRangeList list = PortRangeList.parse("8080,8443, 9000");
+		assertEquals(3, list.size());
+		assertTrue(Arrays.equals(new int[] {8080, 8443, 9000}, list.toArray()));
+		assertTrue(list.contains(8443));
+		assertFalse(list.contains(8081));
+	}
+
+	public void testParseRanges() {
+		PortRangeList list = PortRangeList.parse("12000-12100,9000-9999,10000");
+		assertEquals(101 + 1001, list.size());
+		assertEquals("12000-12100,9000-10000", list.toString());
+		assertEquals(12000, list.toArray()[0]);
+		assertTrue(list.contains(9000));
+		assertTrue(list.contains(10000));
+		assertTrue(list.contains(12100));
+		assertFalse(list.contains(8999));
+		assertFalse(list.contains(10001));
+		assertFalse(list.contains(12101));
+	}
+
+	public void testGetAndWithout() {
+		PortRangeList list = PortRangeList.parse("12000-12100,9000-9999");
+		assertEquals(9000, list.get(0));
+		assertEquals(9999, list.get(999));
+		assertEquals(12000, list.get(1000));
+		assertEquals(12100, list.get(1100));
+
+		assertEquals("9000-9499,12051-12100", list.without(9500, 12050).toString());
+		assertEquals("9000-9999,12000-12100", list.without(10000, 11999).toString());
+		assertEquals(0, list.without(1, 65535).size());
+		assertEquals("9000-9099,9200-9999,12001-12100", list.without(PortRangeList.parse("12000,9100-9199")).toString());
+	}
+
+	public void testInvalid() {
+		for (String spec : new String[] {"", "a", "10-5", "0", "65536", "1,,2"}) {
+			try {
+				PortRangeList.parse(spec);
+				fail(spec);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class PreferredPortIndexTest extends TestCase {
+
+	public void testLookup() {
+		PreferredPortIndex index = new PreferredPortIndex(null);
+		assertNull(index.lookup("job", "node"));
+
+		index.record("job", "node", ports("HTTP", 8080, "JMX", 9999));
+		assertEquals(ports("HTTP", 8080, "JMX", 9999), index.lookup("job", "node"));
+		assertNull(index.lookup("job", "other"));
+		assertNull(index.lookup("other", "node"));
+
+		index.record("job", "node", ports("HTTP", 8081));
+		assertEquals(ports("HTTP", 8081), index.lookup("job", "node"));
+	}
+
+	public void testRenameAndDelete() {
+		PreferredPortIndex index = new PreferredPortIndex(null);
+		index.record("folder/a", "node", ports("HTTP", 8080));
+		index.record("folder/b", "node", ports("HTTP", 8081));
+		index.record("folder2/c", "node", ports("HTTP", 8082));
+
+		index.rename("folder", "renamed");
+		assertNull(index.lookup("folder/a", "node"));
+		assertEquals(ports("HTTP", 8080), index.lookup("renamed/a", "node"));
+		assertEquals(ports("HTTP", 8081), index.lookup("renamed/b", "node"));
+		assertEquals(ports("HTTP", 8082), index.lookup("folder2/c", "node"));
+
+		index.remove("renamed/a");
+		assertNull(index.lookup("renamed/a", "node"));
+		index.remove("renamed");
+		assertNull(index.lookup("renamed/b", "node"));
+		assertEquals(ports("HTTP", 8082), index.lookup("folder2/c", "node"));
+	}
+
+	public void testRetainNodes() {
+		PreferredPortIndex index = new PreferredPortIndex(null);
+		index.record("a", "kept", ports("HTTP", 8080));
+		index.record("a", "removed", ports("HTTP", 8081));
+		index.record("b", "removed", ports("HTTP", 8082));
+
+		index.retainNodes(new HashSet<String>(Arrays.asList("kept", "(built-in)")));
+		assertEquals(ports("HTTP", 8080), index.lookup("a", "kept"));
+		assertNull(index.lookup("a", "removed"));
+		assertNull(index.lookup("b", "removed"));
+	}
+
+	public void testSaveAndLoad() throws Exception {
+		File file = File.createTempFile("preferred-ports", ".bin");
+		file.delete();
+		try {
+			PreferredPortIndex index = new PreferredPortIndex(file);
+			index.record("job", "node", ports("HTTP", 8080, "JMX", 65535));
+			index.record("job", "(built-in)", ports("HTTP", 1024));
+			index.save();
+
+			PreferredPortIndex loaded = new PreferredPortIndex(file);
+			assertEquals(ports("HTTP", 8080, "JMX", 65535), loaded.lookup("job", "node"));
+			assertEquals(ports("HTTP", 1024), loaded.lookup("job", "(built-in)"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static Map<String,Integer> ports(Object... nameAndPorts) {
+		Map<String,Integer> ports = new HashMap<String,Integer>();
+		for (int i = 0; i < nameAndPorts.length; i += 2) {
+			ports.put((String) nameAndPorts[i], (Integer) nameAndPorts[i + 1]);
+		}
+		return ports;
+	}
+}
@@ -0,0 +1,64 @@
+package org.jvnet.hudson.plugins.port_allocator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class RandomPortsTest extends TestCase {
+
+	public void testReadEphemeralRange() throws Exception {
+		File file = File.createTempFile("ip_local_port_range", null);
+		try {
+			Files.write(file.toPath(), "32768\t60999\n".getBytes(StandardCharsets.US_ASCII));
+			int[] range = RandomPorts.readEphemeralRange(file);
+			assertEquals(32768, range[0]);
+			assertEquals(60999, range[1]);
+
+			Files.write(file.toPath(), "garbage\n".getBytes(StandardCharsets.US_ASCII));
+			assertNull(RandomPorts.readEphemeralRange(file));
+		} finally {
+			file.delete();
+		}
+		assertNull(RandomPorts.readEphemeralRange(file));
+	}
+
+	/**
+	 * Ensure that candidates are taken outside the ephemeral range, and that
+	 * the OS picks the port once enough of them turned out to be taken.
+	 * @throws Exception
+	 */
+	public void testBind() throws Exception {
+		int[] ephemeral = RandomPorts.getEphemeralRange();
+		final List<Integer> tried = new ArrayList<Integer>();
+		int port = RandomPorts.bind(PortRangeList.parse("1024-65535"), new RandomPorts.Binder() {
+			public int bind(int port) throws IOException {
+				tried.add(port);
+				if (port != 0) {
+					throw new IOException("Address already in use");
+				}
+				return 42;
+			}
+		});
+		assertEquals(42, port);
+		assertEquals(RandomPorts.MAX_CANDIDATES + 1, tried.size());
+		for (int i = 0; i < RandomPorts.MAX_CANDIDATES; i++) {
+			int candidate = tried.get(i);
+			assertTrue(String.valueOf(candidate), candidate >= 1024 && (candidate < ephemeral[0] || candidate > ephemeral[1]));
+		}
+
+		// without a range, the OS picks the port right away
+		tried.clear();
+		RandomPorts.bind(null, new RandomPorts.Binder() {
+			public int bind(int port) {
+				tried.add(port);
+				return 42;
+			}
+		});
+		assertEquals("[0]", tried.toString());
+	}
+}